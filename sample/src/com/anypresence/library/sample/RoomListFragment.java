@@ -11,6 +11,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.anypresence.library.AnyPresenceAdapter;
+import com.anypresence.library.AnyPresenceHolderAdapter;
 import com.anypresence.library.AnyPresenceListFragment;
 import com.anypresence.sdk.open_clove_demo.models.Room;
 
@@ -58,27 +59,34 @@ public class RoomListFragment extends AnyPresenceListFragment<Room> {
     /**
      * An adapter for Room. This creates the UI for the list items.
      * */
-    public class InfoAdapter extends AnyPresenceAdapter<Room> {
+    public class InfoAdapter extends AnyPresenceHolderAdapter<Room, InfoAdapter.Holder> {
         public InfoAdapter(Context context, List<Room> objects) {
             super(context, objects);
         }
 
+        /**
+         * This is called once per list item view, right after it's inflated.
+         * Look up the views you'll update here.
+         * */
+        @Override
+        protected Holder createViewHolder(View view) {
+            return new Holder(view);
+        }
+
         /**
          * This is called when an item in the list has to be updated
          * */
         @Override
-        public void updateView(View convertView, Room object) {
-            // Grab and update the title
-            TextView tv = (TextView) convertView.findViewById(R.id.title);
-            tv.setText(object.getName());
+        public void updateView(Holder holder, Room object) {
+            // Update the title
+            holder.mTitle.setText(object.getName());
 
             // Show the lock icon if the password is not null/empty
-            ImageView iv = (ImageView) convertView.findViewById(R.id.locked);
             if(object.getPassword() == null || object.getPassword().isEmpty()) {
-                iv.setVisibility(View.GONE);
+                holder.mLocked.setVisibility(View.GONE);
             }
             else {
-                iv.setVisibility(View.VISIBLE);
+                holder.mLocked.setVisibility(View.VISIBLE);
             }
 
             // If you want to use an image from a url instead, call loadImage().
@@ -94,6 +102,17 @@ public class RoomListFragment extends AnyPresenceListFragment<Room> {
         public View inflateView() {
             return View.inflate(getContext(), R.layout.list_item_room, null);
         }
+
+        class Holder extends AnyPresenceAdapter.ViewHolder {
+            private final TextView mTitle;
+            private final ImageView mLocked;
+
+            Holder(View view) {
+                super(view);
+                mTitle = (TextView) view.findViewById(R.id.title);
+                mLocked = (ImageView) view.findViewById(R.id.locked);
+            }
+        }
     }
 
     /**
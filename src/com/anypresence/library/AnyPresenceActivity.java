@@ -1,6 +1,7 @@
 package com.anypresence.library;
 
 import android.content.Context;
+import android.os.Build;
 import android.support.v7.app.ActionBarActivity;
 
 public class AnyPresenceActivity extends ActionBarActivity {
@@ -13,4 +14,12 @@ public class AnyPresenceActivity extends ActionBarActivity {
     protected Context getContext() {
         return this;
     }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+
+        // Newer devices tell ImageCache directly
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) ImageCache.onLowMemory();
+    }
 }
@@ -15,7 +15,7 @@ import com.anypresence.rails_droid.RemoteObject;
  * */
 public abstract class AnyPresenceCarouselFragment<T extends RemoteObject> extends AnyPresenceViewFragment<T> {
 	private ViewPager mPager;
-	private AnyPresenceAdapter<T> mAdapter;
+	private AnyPresenceMultiTypeAdapter<T> mAdapter;
 	private PagerAdapter mPagerAdapter;
 
 	@Override
@@ -51,7 +51,7 @@ public abstract class AnyPresenceCarouselFragment<T extends RemoteObject> extend
     /**
      * Create an adapter for the UI of the ListView.
      * */
-    protected abstract AnyPresenceAdapter<T> createAdapter(List<T> items);
+    protected abstract AnyPresenceMultiTypeAdapter<T> createAdapter(List<T> items);
 
     /**
      * The item has been selected.
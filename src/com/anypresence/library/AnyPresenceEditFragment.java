@@ -109,6 +109,7 @@ public abstract class AnyPresenceEditFragment<T extends RemoteObject> extends An
                         Toast.makeText(getContext(), R.string.ap_edit_msg_failed, Toast.LENGTH_SHORT).show();
                     }
                     else {
+                        QueryResultCache.invalidate(mItem.getClass());
                         if(arg0 != null) {
                             // Using a post, so update item
                             mItem = arg0;
@@ -140,6 +141,7 @@ public abstract class AnyPresenceEditFragment<T extends RemoteObject> extends An
                         Toast.makeText(getContext(), R.string.ap_edit_msg_failed, Toast.LENGTH_SHORT).show();
                     }
                     else {
+                        QueryResultCache.invalidate(mItem.getClass());
                         finish();
                     }
                 }
@@ -0,0 +1,50 @@
+package com.anypresence.library;
+
+import java.io.Serializable;
+import java.util.List;
+
+import android.content.Context;
+import android.view.View;
+
+/**
+ * An AnyPresenceAdapter that keeps a ViewHolder with each list item view.
+ * The holder is created once, right after the view is inflated, and handed
+ * to updateView(H, T) on every update, so child views don't have to be found
+ * again while scrolling.
+ * */
+public abstract class AnyPresenceHolderAdapter<T extends Serializable, H extends AnyPresenceAdapter.ViewHolder> extends AnyPresenceAdapter<T> {
+    public AnyPresenceHolderAdapter(Context context, List<T> objects) {
+        super(context, objects);
+    }
+
+    /**
+     * Create the holder for a view from inflateView(). Look up its child
+     * views here.
+     * */
+    protected abstract H createViewHolder(View view);
+
+    /**
+     * Update the holder's views for the object. There's a chance views
+     * already have data, so make sure to clear everything you aren't
+     * updating.
+     * */
+    public abstract void updateView(H holder, T object);
+
+    @Override
+    protected void onViewInflated(View view, int viewType) {
+        view.setTag(R.id.ap_view_holder, createViewHolder(view));
+    }
+
+    @Override
+    public void updateView(View convertView, T object) {
+        updateView(getViewHolder(convertView), object);
+    }
+
+    /**
+     * Returns the holder attached to a list item view.
+     * */
+    @SuppressWarnings("unchecked")
+    public H getViewHolder(View view) {
+        return (H) view.getTag(R.id.ap_view_holder);
+    }
+}
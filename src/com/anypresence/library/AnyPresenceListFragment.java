@@ -1,7 +1,5 @@
 package com.anypresence.library;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -19,6 +17,8 @@ import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.TextView;
@@ -33,7 +33,7 @@ import com.anypresence.sdk.acl.IAuthenticatable;
 public abstract class AnyPresenceListFragment<T extends RemoteObject> extends ListFragment {
     private List<T> mDebugItems;
     private Context mContext;
-    private AnyPresenceAdapter<T> mAdapter;
+    private AnyPresenceMultiTypeAdapter<T> mAdapter;
     private Comparator<T> mComparator;
     private Filter<T> mFilter;
     private List<T> mUnfilteredData;
@@ -46,6 +46,11 @@ public abstract class AnyPresenceListFragment<T extends RemoteObject> extends Li
     private View mUnauthorizedText;
     private View mServerUnreachableText;
     private List<String> mRoles;
+    private boolean mPauseImagesOnFling = true;
+    private int mImagePrefetchCount;
+    private OnScrollListener mOnScrollListener;
+    private ImagePrefetcher.Batch mPrefetches;
+    private DataSource<T> mDataSource;
 
     public AnyPresenceListFragment() {
         super();
@@ -100,12 +105,100 @@ public abstract class AnyPresenceListFragment<T extends RemoteObject> extends Li
                 onItemSelected(mAdapter.getItem(position));
             }
         });
+        getListView().setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                // Rows only flash by during a fling, so hold off on images
+                // until the list settles
+                mAdapter.setImageLoadingPaused(mPauseImagesOnFling && scrollState == SCROLL_STATE_FLING);
+                if(scrollState == SCROLL_STATE_IDLE) prefetchImages();
+
+                if(mOnScrollListener != null) mOnScrollListener.onScrollStateChanged(view, scrollState);
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if(mOnScrollListener != null) mOnScrollListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+            }
+        });
         if(android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.HONEYCOMB) {
             getListView().setCacheColorHint(Color.TRANSPARENT);
         }
         mIsActivityCreated = true;
     }
 
+    @Override
+    public void onDestroyView() {
+        cancelPrefetches();
+        super.onDestroyView();
+    }
+
+    /**
+     * Download the images of the rows just below the screen, as reported by
+     * AnyPresenceAdapter.getImageUrls().
+     * */
+    private void prefetchImages() {
+        // Start the new batch before dropping the old one, so downloads wanted
+        // by both keep going
+        ImagePrefetcher.Batch previous = mPrefetches;
+        mPrefetches = null;
+        if(mImagePrefetchCount > 0 && mAdapter != null) {
+            int start = Math.max(getListView().getLastVisiblePosition() - getListView().getHeaderViewsCount() + 1, 0);
+            int end = Math.min(start + mImagePrefetchCount, mAdapter.getCount());
+            List<T> items = new ArrayList<T>();
+            for(int i = start; i < end; i++) {
+                items.add(mAdapter.getItem(i));
+            }
+            mPrefetches = ImagePrefetcher.prefetch(getContext(), items, new ImagePrefetcher.UrlExtractor<T>() {
+                @Override
+                public List<String> getUrls(T item) {
+                    return mAdapter.getImageUrls(item);
+                }
+            });
+        }
+        if(previous != null) previous.cancel();
+    }
+
+    private void cancelPrefetches() {
+        if(mPrefetches != null) mPrefetches.cancel();
+        mPrefetches = null;
+    }
+
+    /**
+     * Stop loading images while the list is flinging. Images already in memory
+     * are still shown. Defaults to true.
+     * */
+    public void setPauseImagesOnFling(boolean pauseImagesOnFling) {
+        mPauseImagesOnFling = pauseImagesOnFling;
+        if(!pauseImagesOnFling && mAdapter != null) mAdapter.setImageLoadingPaused(false);
+    }
+
+    public boolean getPauseImagesOnFling() {
+        return mPauseImagesOnFling;
+    }
+
+    /**
+     * Once the list settles, download the images of this many rows below the
+     * screen so they're ready when scrolled to. The adapter must override
+     * getImageUrls(). Defaults to 0.
+     * */
+    public void setImagePrefetchCount(int imagePrefetchCount) {
+        mImagePrefetchCount = imagePrefetchCount;
+    }
+
+    public int getImagePrefetchCount() {
+        return mImagePrefetchCount;
+    }
+
+    /**
+     * Set an OnScrollListener. Use this instead of calling
+     * setOnScrollListener() on the ListView, which would disable pausing
+     * images.
+     * */
+    public void setOnScrollListener(OnScrollListener onScrollListener) {
+        mOnScrollListener = onScrollListener;
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -216,18 +309,26 @@ public abstract class AnyPresenceListFragment<T extends RemoteObject> extends Li
 
                 mUnfilteredData = new ArrayList<T>(object);
                 if(mComparator != null) Collections.sort(mUnfilteredData, mComparator);
+
+                // Large lists are diffed in the background, so wait for the
+                // adapter before showing the list or reporting the load
+                AnyPresenceMultiTypeAdapter.OnUpdateListener onUpdateListener = new AnyPresenceMultiTypeAdapter.OnUpdateListener() {
+                    @Override
+                    public void onUpdate(boolean changed) {
+                        setListShown(true);
+
+                        // Add a "no data" message
+                        enableEmptyView();
+
+                        if(mOnLoadListener != null) mOnLoadListener.onLoad(getList());
+                    }
+                };
                 if(mFilter == null) {
-                    mAdapter.updateAdapter(mUnfilteredData);
+                    mAdapter.updateAdapter(mUnfilteredData, onUpdateListener);
                 }
                 else {
-                    mAdapter.updateAdapter(applyFilter(mUnfilteredData));
+                    mAdapter.updateAdapter(applyFilter(mUnfilteredData), onUpdateListener);
                 }
-                setListShown(true);
-
-                // Add a "no data" message
-                enableEmptyView();
-
-                if(mOnLoadListener != null) mOnLoadListener.onLoad(getList());
             }
 
             @Override
@@ -297,42 +398,38 @@ public abstract class AnyPresenceListFragment<T extends RemoteObject> extends Li
         notifyDataChanged();
     }
 
+    /**
+     * Returns where items are loaded from. Defaults to the SDK model class,
+     * through QueryResultCache, sharing loads with equal queries.
+     * */
+    public DataSource<T> getDataSource() {
+        if(mDataSource == null) {
+            Class<T> clazz = getClazz();
+            mDataSource = new CachingDataSource<T>(clazz, new DeduplicatingDataSource<T>(clazz, SdkDataSource.forClass(clazz)));
+        }
+        return mDataSource;
+    }
+
+    /**
+     * Set where items are loaded from, e.g. a stand-in for tests.
+     * */
+    public void setDataSource(DataSource<T> dataSource) {
+        mDataSource = dataSource;
+    }
+
     /**
      * Load data from cache.
      * */
-    @SuppressWarnings("unchecked")
     private void loadCache(IAPFutureCallback<List<T>> callback) {
         mDoesCacheExist = false;
         if(mQuery != null && mQuery.getScope() != null) {
-            try {
-                Object list;
-                if(mQuery.getLimit() != null || mQuery.getOffset() != null) {
-                    // Query cache w/ limit and offset
-                    Method cacheMethod = getClazz().getMethod("fetchInCacheWithLatestAPCachedRequestPredicate", String.class, Map.class, Integer.class,
-                            Integer.class);
-                    list = cacheMethod.invoke(null, mQuery.getScope(), mQuery.getParams(), mQuery.getOffset(), mQuery.getLimit());
-                }
-                else {
-                    // Query cache w/o limit and offset
-                    Method cacheMethod = getClazz().getMethod("fetchInCacheWithParameterPredicate", String.class, Map.class);
-                    list = cacheMethod.invoke(null, mQuery.getScope(), mQuery.getParams());
-                }
-                if(list != null && ((List<T>) list).size() != 0) {
-                    mDoesCacheExist = true;
-                    callback.onSuccess((List<T>) list);
-                }
-                else {
-                    setListShown(false);
-                }
-            }
-            catch(NoSuchMethodException e) {
-                e.printStackTrace();
-            }
-            catch(IllegalAccessException e) {
-                e.printStackTrace();
+            List<T> list = getDataSource().loadCache(mQuery.toQuery());
+            if(list != null && list.size() != 0) {
+                mDoesCacheExist = true;
+                callback.onSuccess(list);
             }
-            catch(InvocationTargetException e) {
-                e.printStackTrace();
+            else {
+                setListShown(false);
             }
         }
     }
@@ -342,41 +439,7 @@ public abstract class AnyPresenceListFragment<T extends RemoteObject> extends Li
      * */
     private void loadServer(IAPFutureCallback<List<T>> callback) {
         if(mQuery != null && mQuery.getScope() != null) {
-            try {
-                if(mQuery.getParams() == null) {
-                    if(mQuery.getLimit() != null || mQuery.getOffset() != null) {
-                        // Query cache w/ limit and offset
-                        Method m = getClazz().getMethod("queryInBackground", String.class, Integer.class, Integer.class, IAPFutureCallback.class);
-                        m.invoke(null, mQuery.getScope(), mQuery.getOffset(), mQuery.getLimit(), callback);
-                    }
-                    else {
-                        // Query cache w/o limit and offset
-                        Method m = getClazz().getMethod("queryInBackground", String.class, IAPFutureCallback.class);
-                        m.invoke(null, mQuery.getScope(), callback);
-                    }
-                }
-                else {
-                    if(mQuery.getLimit() != null || mQuery.getOffset() != null) {
-                        // Query cache w/ limit and offset
-                        Method m = getClazz().getMethod("queryInBackground", String.class, Map.class, Integer.class, Integer.class, IAPFutureCallback.class);
-                        m.invoke(null, mQuery.getScope(), mQuery.getParams(), mQuery.getOffset(), mQuery.getLimit(), callback);
-                    }
-                    else {
-                        // Query cache w/o limit and offset
-                        Method m = getClazz().getMethod("queryInBackground", String.class, Map.class, IAPFutureCallback.class);
-                        m.invoke(null, mQuery.getScope(), mQuery.getParams(), callback);
-                    }
-                }
-            }
-            catch(NoSuchMethodException e) {
-                e.printStackTrace();
-            }
-            catch(IllegalAccessException e) {
-                e.printStackTrace();
-            }
-            catch(InvocationTargetException e) {
-                e.printStackTrace();
-            }
+            getDataSource().loadServer(mQuery.toQuery(), callback);
         }
     }
 
@@ -540,7 +603,7 @@ public abstract class AnyPresenceListFragment<T extends RemoteObject> extends Li
     /**
      * Create an adapter for the UI of the ListView.
      * */
-    protected abstract AnyPresenceAdapter<T> createAdapter(List<T> items);
+    protected abstract AnyPresenceMultiTypeAdapter<T> createAdapter(List<T> items);
 
     /**
      * Return a copy of the objects class. Used internally for loading from
@@ -570,47 +633,63 @@ public abstract class AnyPresenceListFragment<T extends RemoteObject> extends Li
         public void onItemSelected(T item);
     }
 
+    /**
+     * A query for the list. Delegates to com.anypresence.library.Query, so
+     * equal queries are equal here too.
+     * */
     public static class Query {
-        private final String mScope;
-        private final Map<String, String> mParams;
-        private final Integer mLimit;
-        private final Integer mOffset;
+        private final com.anypresence.library.Query mQuery;
 
         public Query(String scope) {
-            mScope = scope;
-            mParams = null;
-            mLimit = null;
-            mOffset = null;
+            this(scope, null, null, null);
         }
 
         public Query(String scope, Map<String, String> params) {
-            mScope = scope;
-            mParams = params;
-            mLimit = null;
-            mOffset = null;
+            this(scope, params, null, null);
         }
 
         public Query(String scope, Map<String, String> params, Integer limit, Integer offset) {
-            mScope = scope;
-            mParams = params;
-            mLimit = limit;
-            mOffset = offset;
+            mQuery = new com.anypresence.library.Query(scope, params, limit, offset);
         }
 
         public String getScope() {
-            return mScope;
+            return mQuery.getScope();
         }
 
         public Map<String, String> getParams() {
-            return mParams;
+            return mQuery.getParams();
         }
 
         public Integer getLimit() {
-            return mLimit;
+            return mQuery.getLimit();
         }
 
         public Integer getOffset() {
-            return mOffset;
+            return mQuery.getOffset();
+        }
+
+        /**
+         * Returns the query as passed to a DataSource.
+         * */
+        public com.anypresence.library.Query toQuery() {
+            return mQuery;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(o == this) return true;
+            if(!(o instanceof Query)) return false;
+            return mQuery.equals(((Query) o).mQuery);
+        }
+
+        @Override
+        public int hashCode() {
+            return mQuery.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mQuery.toString();
         }
     }
 }
@@ -0,0 +1,542 @@
+package com.anypresence.library;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.anypresence.rails_droid.RemoteObject;
+
+/**
+ * A simplified adapter that mixes layouts, e.g. section headers and items.
+ * Handles caching of views as well as loading images from a URL efficiently.
+ *
+ * Each item has a view type from getViewType(), and ListView recycles views
+ * separately per type. Extend AnyPresenceAdapter instead if every item uses
+ * the same layout.
+ * */
+public abstract class AnyPresenceMultiTypeAdapter<T extends Serializable> extends ArrayAdapter<T> {
+    // Lists bigger than this (old and new combined) are diffed off the main thread
+    private static final int BACKGROUND_DIFF_THRESHOLD = 1000;
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private final Map<View, BitmapTask> mAsyncTasks = new WeakHashMap<View, BitmapTask>();
+    private final Map<View, BitmapTask> mPausedTasks = new WeakHashMap<View, BitmapTask>();
+    private boolean mIsImageLoadingPaused;
+    private final List<T> mList;
+    // Backing list index of each visible position
+    private int[] mVisibleIndices = new int[0];
+    private int mVisibleCount;
+    // Backing list index each on-screen view was last bound to
+    private final Map<View, Integer> mBoundViews = new WeakHashMap<View, Integer>();
+    // Item each view was last bound to, kept across data changes
+    private final Map<View, T> mBoundItems = new WeakHashMap<View, T>();
+    // Items of the last update whose old version is still shown correctly,
+    // mapped to that old version
+    private Map<T, T> mUnchangedItems = Collections.emptyMap();
+    private Map<T, T> mPendingUnchangedItems = Collections.emptyMap();
+    private int mUpdateGeneration;
+    private final List<OnUpdateListener> mPendingListeners = new ArrayList<OnUpdateListener>();
+
+    public AnyPresenceMultiTypeAdapter(Context context, List<T> objects) {
+        super(context, 0, objects);
+        mList = objects;
+        indexVisibleItems();
+    }
+
+    /**
+     * Returns the list the adapter is querying for data.
+     * */
+    public List<T> getList() {
+        return mList;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        // ListView only hands back views of the same type
+        int viewType = getItemViewType(position);
+        T item = getItem(position);
+        if(convertView == null) {
+            convertView = inflateView(viewType);
+            onViewInflated(convertView, viewType);
+            updateView(convertView, item, viewType);
+        }
+        else if(!isShowing(convertView, item)) {
+            updateView(convertView, item, viewType);
+        }
+        mBoundItems.put(convertView, item);
+        if(position >= 0 && position < mVisibleCount) mBoundViews.put(convertView, mVisibleIndices[position]);
+
+        return convertView;
+    }
+
+    @Override
+    public View getDropDownView(int position, View convertView, ViewGroup parent) {
+        if(convertView == null) {
+            convertView = inflateDropdownView();
+        }
+        updateDropdownView(convertView, getItem(position));
+
+        return convertView;
+    }
+
+    /**
+     * Returns true if the view was last bound to the item, or to an older
+     * version of it that updateAdapter() found unchanged, since the update
+     * was applied. Rebinding it would only redo the same work.
+     * */
+    private boolean isShowing(View view, T item) {
+        T bound = mBoundItems.get(view);
+        if(bound == null || !mUnchangedItems.containsKey(item)) return false;
+        return bound == item || bound == mUnchangedItems.get(item);
+    }
+
+    /**
+     * Updates the data in the adapter. Items are matched up by getItemKey().
+     * If the same items come back in the same order, only the on-screen rows
+     * whose item changed (see areContentsTheSame()) are updated, and if
+     * nothing changed nothing is rebound. If items were added, removed or
+     * moved the list is laid out again, but a row handed a view that already
+     * shows an unchanged version of its item isn't rebound.
+     * */
+    public void updateAdapter(List<T> data) {
+        updateAdapter(data, null);
+    }
+
+    /**
+     * Like updateAdapter(List), but calls the listener once the data is in
+     * the adapter. Large lists are compared on a background thread, so
+     * that may be after this returns. If another update is made in the
+     * meantime, this one is dropped and the listener is called once the
+     * newer data is in instead.
+     * */
+    public void updateAdapter(List<T> data, OnUpdateListener onUpdateListener) {
+        // Cache can be null
+        if(data == null) return;
+
+        if(onUpdateListener != null) mPendingListeners.add(onUpdateListener);
+        final int generation = ++mUpdateGeneration;
+        final List<T> oldItems = new ArrayList<T>(mList);
+        final List<T> newItems = new ArrayList<T>(data);
+        if(oldItems.size() + newItems.size() < BACKGROUND_DIFF_THRESHOLD) {
+            applyUpdate(oldItems, newItems, diff(oldItems, newItems));
+            return;
+        }
+
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Diff<T> diff = diff(oldItems, newItems);
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(generation == mUpdateGeneration) applyUpdate(oldItems, newItems, diff);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Compares the items by key. If only contents changed, returns the
+     * backing indices whose item changed. Otherwise returns the new items
+     * whose key was already in the list with the same contents.
+     * */
+    private Diff<T> diff(List<T> oldItems, List<T> newItems) {
+        Diff<T> diff = new Diff<T>();
+        if(oldItems.size() == newItems.size()) {
+            int[] changed = new int[oldItems.size()];
+            int changedCount = 0;
+            boolean isMoved = false;
+            for(int i = 0; i < oldItems.size() && !isMoved; i++) {
+                T oldItem = oldItems.get(i);
+                T newItem = newItems.get(i);
+                if(oldItem == newItem) continue;
+
+                Object oldKey = getItemKey(oldItem);
+                Object newKey = getItemKey(newItem);
+                if(oldKey == null ? newKey != null : !oldKey.equals(newKey)) isMoved = true;
+                else if(!areContentsTheSame(oldItem, newItem)) changed[changedCount++] = i;
+            }
+            if(!isMoved) {
+                diff.mChanged = new int[changedCount];
+                System.arraycopy(changed, 0, diff.mChanged, 0, changedCount);
+                return diff;
+            }
+        }
+
+        // Items were added, removed or moved. Keys that appear more than
+        // once can't be matched up, so those rows are always rebound.
+        Map<Object, T> oldByKey = new HashMap<Object, T>();
+        Map<Object, Boolean> duplicates = new HashMap<Object, Boolean>();
+        for(T oldItem : oldItems) {
+            Object key = getItemKey(oldItem);
+            if(oldByKey.put(key, oldItem) != null) duplicates.put(key, true);
+        }
+        diff.mUnchanged = new IdentityHashMap<T, T>();
+        for(T newItem : newItems) {
+            Object key = getItemKey(newItem);
+            T oldItem = oldByKey.get(key);
+            if(oldItem == null || duplicates.containsKey(key)) continue;
+            if(oldItem == newItem || areContentsTheSame(oldItem, newItem)) diff.mUnchanged.put(newItem, oldItem);
+        }
+        return diff;
+    }
+
+    private void applyUpdate(List<T> oldItems, List<T> newItems, Diff<T> diff) {
+        int[] changed = diff.mChanged;
+        Map<T, T> unchanged = diff.mUnchanged;
+        // The list was changed some other way since the diff started
+        if(!oldItems.equals(mList)) {
+            changed = null;
+            unchanged = null;
+        }
+
+        boolean isChanged;
+        if(changed == null) {
+            mList.clear();
+            mList.addAll(newItems);
+            if(unchanged != null) mPendingUnchangedItems = unchanged;
+            notifyDataSetChanged();
+            isChanged = true;
+        }
+        else {
+            // A row that appears, disappears or changes layout needs the
+            // ListView to lay out again
+            boolean isLayoutChanged = false;
+            for(int i : changed) {
+                T oldItem = mList.get(i);
+                T newItem = newItems.get(i);
+                if(isObjectHidden(oldItem) != isObjectHidden(newItem) || getViewType(oldItem) != getViewType(newItem)) isLayoutChanged = true;
+            }
+
+            // Swap in the new instances either way, so getItem() is current
+            for(int i = 0; i < newItems.size(); i++) {
+                mList.set(i, newItems.get(i));
+            }
+
+            if(isLayoutChanged) notifyDataSetChanged();
+            else if(changed.length > 0) rebindViews(changed);
+            isChanged = changed.length > 0;
+        }
+
+        // Includes the listeners of updates this one replaced
+        List<OnUpdateListener> listeners = new ArrayList<OnUpdateListener>(mPendingListeners);
+        mPendingListeners.clear();
+        for(OnUpdateListener listener : listeners) {
+            listener.onUpdate(isChanged);
+        }
+    }
+
+    /**
+     * Update just the on-screen views bound to the changed indices.
+     * */
+    private void rebindViews(int[] changed) {
+        boolean[] isChanged = new boolean[mList.size()];
+        for(int i : changed) {
+            isChanged[i] = true;
+        }
+        for(Map.Entry<View, Integer> entry : mBoundViews.entrySet()) {
+            int index = entry.getValue();
+            View view = entry.getKey();
+            // Views in the recycler have no parent
+            if(view.getParent() != null && index < isChanged.length && isChanged[index]) {
+                T item = mList.get(index);
+                updateView(view, item, getViewType(item));
+                mBoundItems.put(view, item);
+            }
+        }
+    }
+
+    /**
+     * Returns what identifies the item across updates. Defaults to the
+     * object id for RemoteObjects and the item itself otherwise. May be
+     * called on a background thread.
+     * */
+    protected Object getItemKey(T item) {
+        if(item instanceof RemoteObject && ((RemoteObject) item).getObjectId() != null) return ((RemoteObject) item).getObjectId();
+        return item;
+    }
+
+    /**
+     * Returns true if the two versions of an item would display the same,
+     * so its row doesn't need updating. Defaults to equals(). May be called
+     * on a background thread.
+     * */
+    protected boolean areContentsTheSame(T oldItem, T newItem) {
+        return oldItem == null ? newItem == null : oldItem.equals(newItem);
+    }
+
+    /**
+     * A helper method for loading images from a URL. Pass the convertView
+     * because there is some handling in the background for canceling the call
+     * if the user is scrolling away.
+     * */
+    @Deprecated
+     protected void grabImage(View convertView, ImageView iv, String url) {
+        // Kill the previous async tasks
+        BitmapTask previousTask = mAsyncTasks.get(convertView);
+        if(previousTask != null) {
+            previousTask.cancel(true);
+        }
+        BitmapTask newTask = new BitmapTask(iv, url);
+        newTask.executeAsync();
+        mAsyncTasks.put(convertView, newTask);
+    }
+
+    /**
+     * A helper method for loading images from a URL. Pass the convertView
+     * because there is some handling in the background for canceling the call
+     * if the user is scrolling away.
+     * */
+    protected void loadImage(ImageView iv, String url) {
+        loadImage(iv, url, 0, 0);
+    }
+
+    /**
+     * Like loadImage(ImageView, String), but decodes the image at roughly
+     * width x height instead of measuring the ImageView.
+     * */
+    protected void loadImage(ImageView iv, String url, int width, int height) {
+        loadImage(iv, url, width, height, null);
+    }
+
+    /**
+     * Like loadImage(ImageView, String), but transforms the image (e.g.
+     * crops it into a circle) on a background thread. The transformed image
+     * is cached, so rebinding the view doesn't redo the work.
+     * */
+    protected void loadImage(ImageView iv, String url, Transformation transformation) {
+        loadImage(iv, url, 0, 0, transformation);
+    }
+
+    /**
+     * Like loadImage(ImageView, String, int, int), but transforms the image
+     * on a background thread.
+     * */
+    protected void loadImage(ImageView iv, String url, int width, int height, Transformation transformation) {
+        BitmapTask newTask = new BitmapTask(iv, url, width, height);
+        newTask.setTransformation(transformation);
+        bindTask(iv, newTask);
+    }
+
+    /**
+     * Load an image from a URL into the left compound drawable of the
+     * TextView, sized to the current drawable or the text.
+     * */
+    protected void loadCompoundImage(TextView tv, String url) {
+        bindTask(tv, new TextViewBitmapTask(tv, url));
+    }
+
+    private void bindTask(View target, BitmapTask newTask) {
+        // The view's token is the last task started for it
+        BitmapTask previousTask = BitmapTask.getBoundTask(target);
+        if(previousTask != null) {
+            if(previousTask.isLoading() && previousTask.isSameRequest(newTask)) {
+                // Rebound to the image it's already loading
+                ImageMetrics.count(ImageMetrics.REDUNDANT_RELOAD_SKIPPED);
+                return;
+            }
+            previousTask.cancel(true);
+        }
+        mPausedTasks.remove(target);
+        if(mIsImageLoadingPaused) {
+            // Images already in memory are cheap, so show them anyway
+            if(!newTask.executeFromMemory()) mPausedTasks.put(target, newTask);
+        }
+        else {
+            newTask.executeAsync();
+        }
+    }
+
+    /**
+     * Pause image loading, e.g. while the list is flinging. loadImage() will
+     * still show images that are in memory, but won't fetch anything. When
+     * unpaused, images are loaded for the views that are still on screen.
+     * */
+    public void setImageLoadingPaused(boolean paused) {
+        if(mIsImageLoadingPaused == paused) return;
+        mIsImageLoadingPaused = paused;
+        if(paused) return;
+
+        // Rows that scrolled off have been recycled, so their images aren't
+        // needed anymore
+        for(Map.Entry<View, BitmapTask> entry : mPausedTasks.entrySet()) {
+            if(entry.getKey().isShown()) entry.getValue().executeFromRequest();
+            else entry.getValue().cancel(true);
+        }
+        mPausedTasks.clear();
+    }
+
+    public boolean isImageLoadingPaused() {
+        return mIsImageLoadingPaused;
+    }
+
+    /**
+     * Returns the urls of the images updateView() will load for the object,
+     * or null. Override to let AnyPresenceListFragment download images for
+     * rows just before they scroll into view.
+     * */
+    protected List<String> getImageUrls(T object) {
+        return null;
+    }
+
+    /**
+     * Called as infrequently as possible. Load the view for a view type, from
+     * getViewType(), usually from xml. ListView keeps recycled views
+     * separately per type, so a layout only has to hold what its type shows.
+     * */
+    public abstract View inflateView(int viewType);
+
+    /**
+     * Passes a view from inflateView(int) for the same view type. There's a
+     * chance views like TextViews already have data, so make sure to clear
+     * everything you aren't updating. Also, avoid permanent UI changes like
+     * adding or removing views to convertView.
+     * */
+    public abstract void updateView(View convertView, T object, int viewType);
+
+    /**
+     * Called once for each view from inflateView(int), before it's first
+     * updated.
+     * */
+    protected void onViewInflated(View view, int viewType) {}
+
+    /**
+     * Returns the view type for the object, from 0 to getViewTypeCount() - 1.
+     * */
+    public abstract int getViewType(T object);
+
+    /**
+     * Returns the number of view types getViewType() can return. ListView
+     * reads this once, when the adapter is set.
+     * */
+    @Override
+    public abstract int getViewTypeCount();
+
+    @Override
+    public int getItemViewType(int position) {
+        if(position < 0 || position >= mVisibleCount) return IGNORE_ITEM_VIEW_TYPE;
+        int viewType = getViewType(getItem(position));
+        if(viewType < 0 || viewType >= getViewTypeCount()) {
+            throw new IllegalStateException("getViewType() returned " + viewType + ", but getViewTypeCount() is " + getViewTypeCount());
+        }
+        return viewType;
+    }
+
+    /**
+     * Called as infrequently as possible. Load your dropdown view, usually from
+     * xml, here.
+     * */
+    public View inflateDropdownView() {
+        return null;
+    }
+
+    /**
+     * Passes the view from inflateDropdownView. There's a chance views like
+     * TextViews already have data, so make sure to clear everything you aren't
+     * updating. Also, avoid permanent UI changes like adding or removing views
+     * to convertView.
+     * */
+    public void updateDropdownView(View convertView, T object) {}
+
+    @Override
+    public void notifyDataSetChanged() {
+        indexVisibleItems();
+        // Positions moved. Views are recorded again as they're rebound.
+        mBoundViews.clear();
+        // Only an update's own relayout may skip rebinding; after any other
+        // change every view is rebound
+        mUnchangedItems = mPendingUnchangedItems;
+        mPendingUnchangedItems = Collections.emptyMap();
+        super.notifyDataSetChanged();
+    }
+
+    /**
+     * Maps visible positions to the backing list, so isObjectHidden() runs
+     * once per item per change instead of on every getItem().
+     * */
+    private void indexVisibleItems() {
+        int size = mList.size();
+        if(mVisibleIndices.length < size) mVisibleIndices = new int[size];
+
+        int count = 0;
+        for(int i = 0; i < size; i++) {
+            if(!isObjectHidden(mList.get(i))) {
+                mVisibleIndices[count++] = i;
+            }
+        }
+        mVisibleCount = count;
+    }
+
+    @Override
+    public int getCount() {
+        return mVisibleCount;
+    }
+
+    @Override
+    public T getItem(int position) {
+        if(position >= 0 && position < mVisibleCount) return mList.get(mVisibleIndices[position]);
+        return super.getItem(position);
+    }
+
+    public boolean isObjectHidden(T object) {
+        return false;
+    }
+
+    /**
+     * The result of comparing two lists. mChanged is set if only contents
+     * changed, mUnchanged otherwise.
+     * */
+    private static class Diff<T> {
+        private int[] mChanged;
+        private Map<T, T> mUnchanged;
+    }
+
+    /**
+     * A listener for when updateAdapter() has applied new data.
+     * */
+    public static interface OnUpdateListener {
+        /**
+         * Called on the main thread. changed is false if the new data was
+         * identical and nothing was rebound.
+         * */
+        public void onUpdate(boolean changed);
+    }
+
+    /**
+     * Holds the child views of a list item, so they're looked up once when
+     * the view is inflated instead of on every update. See
+     * AnyPresenceHolderAdapter.
+     * */
+    public static class ViewHolder {
+        private final View mView;
+
+        public ViewHolder(View view) {
+            mView = view;
+        }
+
+        /**
+         * Returns the list item view this holder belongs to.
+         * */
+        public View getView() {
+            return mView;
+        }
+    }
+}
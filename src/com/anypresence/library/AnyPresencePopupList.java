@@ -9,7 +9,6 @@ import java.util.Map;
 import android.content.Context;
 import android.util.AttributeSet;
 
-import com.anypresence.rails_droid.IAPFutureCallback;
 import com.anypresence.rails_droid.RemoteObject;
 import com.anypresence.sdk.callbacks.APCallback;
 
@@ -24,6 +23,7 @@ public abstract class AnyPresencePopupList<T extends RemoteObject> extends Gener
     private String mLabel;
     private OnLoadListener<T> mOnLoadListener;
     private List<T> mPermenantItems;
+    private DataSource<T> mDataSource;
 
     public AnyPresencePopupList(Context context) {
         super(context);
@@ -41,30 +41,18 @@ public abstract class AnyPresencePopupList<T extends RemoteObject> extends Gener
      * Set the currently selected item via object id.
      * */
     public void setItem(String id) {
-        try {
-            Method m = getClazz().getMethod("fetchInBackground", String.class, IAPFutureCallback.class);
-            m.invoke(null, id, new APCallback<T>() {
-                @Override
-                public void finished(T arg0, Throwable ex) {
-                    if(ex == null) {
-                        setItem(arg0);
-                        loadItems();
-                    }
-                    else {
-                        ex.printStackTrace();
-                    }
+        getDataSource().fetch(id, new APCallback<T>() {
+            @Override
+            public void finished(T arg0, Throwable ex) {
+                if(ex == null) {
+                    setItem(arg0);
+                    loadItems();
                 }
-            });
-        }
-        catch(NoSuchMethodException e) {
-            e.printStackTrace();
-        }
-        catch(IllegalAccessException e) {
-            e.printStackTrace();
-        }
-        catch(InvocationTargetException e) {
-            e.printStackTrace();
-        }
+                else {
+                    ex.printStackTrace();
+                }
+            }
+        });
     }
 
     /**
@@ -77,48 +65,48 @@ public abstract class AnyPresencePopupList<T extends RemoteObject> extends Gener
     /**
      * Loads items from query scope and params.
      * */
-    @SuppressWarnings("unchecked")
     protected void loadItems() {
-        try {
-            APCallback<List<T>> callback = new APCallback<List<T>>() {
-                @Override
-                public void finished(final List<T> arg0, Throwable ex) {
-                    if(ex != null) {
-                        ex.printStackTrace();
-                        return;
-                    }
-
-                    if(mPermenantItems != null) {
-                        arg0.addAll(0, mPermenantItems);
-                    }
-
-                    setItems(arg0);
-                    if(mOnLoadListener != null) mOnLoadListener.onLoad(arg0);
+        APCallback<List<T>> callback = new APCallback<List<T>>() {
+            @Override
+            public void finished(final List<T> arg0, Throwable ex) {
+                if(ex != null) {
+                    ex.printStackTrace();
+                    return;
                 }
-            };
-            Method cacheMethod = getClazz().getMethod("fetchInCacheWithParameterPredicate", String.class, Map.class);
-            Object list = cacheMethod.invoke(null, mQueryScope, mQueryParams);
-            if(list != null && ((List<T>) list).size() != 0) {
-                callback.onSuccess((List<T>) list);
-            }
-            if(mQueryParams == null) {
-                Method m = getClazz().getMethod("queryInBackground", String.class, IAPFutureCallback.class);
-                m.invoke(null, mQueryScope, callback);
-            }
-            else {
-                Method m = getClazz().getMethod("queryInBackground", String.class, Map.class, IAPFutureCallback.class);
-                m.invoke(null, mQueryScope, mQueryParams, callback);
+
+                if(mPermenantItems != null) {
+                    arg0.addAll(0, mPermenantItems);
+                }
+
+                setItems(arg0);
+                if(mOnLoadListener != null) mOnLoadListener.onLoad(arg0);
             }
+        };
+        Query query = new Query(mQueryScope, mQueryParams);
+        List<T> list = getDataSource().loadCache(query);
+        if(list != null && list.size() != 0) {
+            callback.onSuccess(list);
         }
-        catch(NoSuchMethodException e) {
-            e.printStackTrace();
-        }
-        catch(IllegalAccessException e) {
-            e.printStackTrace();
-        }
-        catch(InvocationTargetException e) {
-            e.printStackTrace();
+        getDataSource().loadServer(query, callback);
+    }
+
+    /**
+     * Returns where items are loaded from. Defaults to the SDK model class,
+     * through QueryResultCache, sharing loads with equal queries.
+     * */
+    public DataSource<T> getDataSource() {
+        if(mDataSource == null) {
+            Class<T> clazz = getClazz();
+            mDataSource = new CachingDataSource<T>(clazz, new DeduplicatingDataSource<T>(clazz, SdkDataSource.forClass(clazz)));
         }
+        return mDataSource;
+    }
+
+    /**
+     * Set where items are loaded from, e.g. a stand-in for tests.
+     * */
+    public void setDataSource(DataSource<T> dataSource) {
+        mDataSource = dataSource;
     }
 
     /**
@@ -1,7 +1,5 @@
 package com.anypresence.library;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -36,6 +34,7 @@ public abstract class AnyPresenceViewFragment<T extends RemoteObject> extends An
     private Query mQuery = new Query("all");
     private View mNoResultsText;
     private View mServerUnreachableText;
+    private DataSource<T> mDataSource;
 
     @SuppressWarnings("unchecked")
 	@Override
@@ -183,42 +182,38 @@ public abstract class AnyPresenceViewFragment<T extends RemoteObject> extends An
         notifyDataChanged();
     }
 
+    /**
+     * Returns where items are loaded from. Defaults to the SDK model class,
+     * through QueryResultCache, sharing loads with equal queries.
+     * */
+    public DataSource<T> getDataSource() {
+        if(mDataSource == null) {
+            Class<T> clazz = getClazz();
+            mDataSource = new CachingDataSource<T>(clazz, new DeduplicatingDataSource<T>(clazz, SdkDataSource.forClass(clazz)));
+        }
+        return mDataSource;
+    }
+
+    /**
+     * Set where items are loaded from, e.g. a stand-in for tests.
+     * */
+    public void setDataSource(DataSource<T> dataSource) {
+        mDataSource = dataSource;
+    }
+
     /**
      * Load data from cache.
      * */
-    @SuppressWarnings("unchecked")
     private void loadCache(IAPFutureCallback<List<T>> callback) {
         mDoesCacheExist = false;
         if(mQuery != null && mQuery.getScope() != null) {
-            try {
-                Object list;
-                if(mQuery.getLimit() != null || mQuery.getOffset() != null) {
-                    // Query cache w/ limit and offset
-                    Method cacheMethod = getClazz().getMethod("fetchInCacheWithLatestAPCachedRequestPredicate", String.class, Map.class, Integer.class,
-                            Integer.class);
-                    list = cacheMethod.invoke(null, mQuery.getScope(), mQuery.getParams(), mQuery.getOffset(), mQuery.getLimit());
-                }
-                else {
-                    // Query cache w/o limit and offset
-                    Method cacheMethod = getClazz().getMethod("fetchInCacheWithParameterPredicate", String.class, Map.class);
-                    list = cacheMethod.invoke(null, mQuery.getScope(), mQuery.getParams());
-                }
-                if(list != null && ((List<T>) list).size() != 0) {
-                    mDoesCacheExist = true;
-                    callback.onSuccess((List<T>) list);
-                }
-                else {
-                    setViewShown(false);
-                }
-            }
-            catch(NoSuchMethodException e) {
-                e.printStackTrace();
+            List<T> list = getDataSource().loadCache(mQuery);
+            if(list != null && list.size() != 0) {
+                mDoesCacheExist = true;
+                callback.onSuccess(list);
             }
-            catch(IllegalAccessException e) {
-                e.printStackTrace();
-            }
-            catch(InvocationTargetException e) {
-                e.printStackTrace();
+            else {
+                setViewShown(false);
             }
         }
     }
@@ -228,41 +223,7 @@ public abstract class AnyPresenceViewFragment<T extends RemoteObject> extends An
      * */
     private void loadServer(IAPFutureCallback<List<T>> callback) {
         if(mQuery != null && mQuery.getScope() != null) {
-            try {
-                if(mQuery.getParams() == null) {
-                    if(mQuery.getLimit() != null || mQuery.getOffset() != null) {
-                        // Query cache w/ limit and offset
-                        Method m = getClazz().getMethod("queryInBackground", String.class, Integer.class, Integer.class, IAPFutureCallback.class);
-                        m.invoke(null, mQuery.getScope(), mQuery.getOffset(), mQuery.getLimit(), callback);
-                    }
-                    else {
-                        // Query cache w/o limit and offset
-                        Method m = getClazz().getMethod("queryInBackground", String.class, IAPFutureCallback.class);
-                        m.invoke(null, mQuery.getScope(), callback);
-                    }
-                }
-                else {
-                    if(mQuery.getLimit() != null || mQuery.getOffset() != null) {
-                        // Query cache w/ limit and offset
-                        Method m = getClazz().getMethod("queryInBackground", String.class, Map.class, Integer.class, Integer.class, IAPFutureCallback.class);
-                        m.invoke(null, mQuery.getScope(), mQuery.getParams(), mQuery.getOffset(), mQuery.getLimit(), callback);
-                    }
-                    else {
-                        // Query cache w/o limit and offset
-                        Method m = getClazz().getMethod("queryInBackground", String.class, Map.class, IAPFutureCallback.class);
-                        m.invoke(null, mQuery.getScope(), mQuery.getParams(), callback);
-                    }
-                }
-            }
-            catch(NoSuchMethodException e) {
-                e.printStackTrace();
-            }
-            catch(IllegalAccessException e) {
-                e.printStackTrace();
-            }
-            catch(InvocationTargetException e) {
-                e.printStackTrace();
-            }
+            getDataSource().loadServer(mQuery, callback);
         }
     }
 
@@ -0,0 +1,161 @@
+package com.anypresence.library;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Decodes bitmaps no larger than they need to be. A bounds-only pass reads the
+ * image size, then the real decode is subsampled to roughly the target size.
+ * When a BitmapPool is passed, the decode reuses a pooled bitmap if one fits.
+ * */
+public class BitmapDecoder {
+    /**
+     * Decode a file at close to reqWidth x reqHeight. Pass 0 for a dimension
+     * that doesn't matter. If allowRgb565 is true, opaque formats are
+     * decoded at half the memory of ARGB_8888.
+     * */
+    public static Bitmap decodeFile(String path, int reqWidth, int reqHeight, boolean allowRgb565) {
+        return decodeFile(path, reqWidth, reqHeight, allowRgb565, null);
+    }
+
+    /**
+     * Like decodeFile(String, int, int, boolean), but decodes into a bitmap
+     * from the pool when possible.
+     * */
+    public static Bitmap decodeFile(String path, int reqWidth, int reqHeight, boolean allowRgb565, BitmapPool pool) {
+        return decodeFile(path, reqWidth, reqHeight, allowRgb565, pool, null);
+    }
+
+    /**
+     * Like decodeFile(String, int, int, boolean, BitmapPool), but gives up
+     * and returns null as soon as the handle is cancelled.
+     * */
+    static Bitmap decodeFile(String path, int reqWidth, int reqHeight, boolean allowRgb565, BitmapPool pool, CancelHandle handle) {
+        long start = ImageMetrics.start();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if(handle != null) handle.setOptions(options);
+        try {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            if(options.outWidth <= 0 || options.outHeight <= 0 || options.mCancel) return null;
+
+            prepareOptions(options, reqWidth, reqHeight, allowRgb565, pool);
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeFile(path, options);
+            }
+            catch(IllegalArgumentException e) {
+                bitmap = null;
+            }
+            if(bitmap == null && clearInBitmap(options, pool)) bitmap = BitmapFactory.decodeFile(path, options);
+            return bitmap;
+        }
+        finally {
+            if(handle != null) handle.setOptions(null);
+            ImageMetrics.time(ImageMetrics.DECODE_TIME, start);
+        }
+    }
+
+    /**
+     * Decode a byte array at close to reqWidth x reqHeight. Pass 0 for a
+     * dimension that doesn't matter. If allowRgb565 is true, opaque formats
+     * are decoded at half the memory of ARGB_8888.
+     * */
+    public static Bitmap decodeByteArray(byte[] data, int reqWidth, int reqHeight, boolean allowRgb565) {
+        return decodeByteArray(data, reqWidth, reqHeight, allowRgb565, null);
+    }
+
+    /**
+     * Like decodeByteArray(byte[], int, int, boolean), but decodes into a
+     * bitmap from the pool when possible.
+     * */
+    public static Bitmap decodeByteArray(byte[] data, int reqWidth, int reqHeight, boolean allowRgb565, BitmapPool pool) {
+        return decodeByteArray(data, reqWidth, reqHeight, allowRgb565, pool, null);
+    }
+
+    /**
+     * Like decodeByteArray(byte[], int, int, boolean, BitmapPool), but gives
+     * up and returns null as soon as the handle is cancelled.
+     * */
+    static Bitmap decodeByteArray(byte[] data, int reqWidth, int reqHeight, boolean allowRgb565, BitmapPool pool, CancelHandle handle) {
+        long start = ImageMetrics.start();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if(handle != null) handle.setOptions(options);
+        try {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if(options.outWidth <= 0 || options.outHeight <= 0 || options.mCancel) return null;
+
+            prepareOptions(options, reqWidth, reqHeight, allowRgb565, pool);
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+            catch(IllegalArgumentException e) {
+                bitmap = null;
+            }
+            if(bitmap == null && clearInBitmap(options, pool)) bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            return bitmap;
+        }
+        finally {
+            if(handle != null) handle.setOptions(null);
+            ImageMetrics.time(ImageMetrics.DECODE_TIME, start);
+        }
+    }
+
+    /**
+     * Returns the largest power of two that keeps the decoded image at least
+     * as large as the requested size.
+     * */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if(reqWidth <= 0 && reqHeight <= 0) return inSampleSize;
+
+        while((reqWidth <= 0 || width / (inSampleSize * 2) >= reqWidth)
+                && (reqHeight <= 0 || height / (inSampleSize * 2) >= reqHeight)) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    @SuppressLint("NewApi")
+    private static void prepareOptions(BitmapFactory.Options options, int reqWidth, int reqHeight, boolean allowRgb565, BitmapPool pool) {
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        options.inPreferredConfig = allowRgb565 && isOpaque(options.outMimeType) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        options.inJustDecodeBounds = false;
+
+        if(BitmapPool.isSupported()) {
+            // Mutable so the bitmap can be pooled once it's evicted
+            options.inMutable = true;
+
+            // Before KitKat, only unscaled decodes can reuse a bitmap
+            if(pool != null && (options.inSampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)) {
+                int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+                int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+                options.inBitmap = pool.get(width, height, options.inPreferredConfig);
+            }
+        }
+    }
+
+    /**
+     * Called after a failed decode. If it was decoding into a pooled bitmap,
+     * that bitmap is put back and true is returned, so the caller can retry
+     * without it. A pooled bitmap that doesn't fit, e.g. a GIF before KitKat,
+     * fails the decode. decodeFile() only returns null then, while
+     * decodeByteArray() throws, so both are retried on any failure.
+     * */
+    @SuppressLint("NewApi")
+    private static boolean clearInBitmap(BitmapFactory.Options options, BitmapPool pool) {
+        if(!BitmapPool.isSupported() || options.inBitmap == null || options.mCancel) return false;
+        Bitmap unused = options.inBitmap;
+        options.inBitmap = null;
+        if(pool != null) pool.put(unused);
+        return true;
+    }
+
+    private static boolean isOpaque(String mimeType) {
+        return "image/jpeg".equals(mimeType);
+    }
+}
@@ -0,0 +1,493 @@
+package com.anypresence.library;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+
+/**
+ * A bounded LRU cache of files on disk. Entries are named by a hash of their
+ * key, written to a temp file and renamed into place on commit. A journal
+ * records every change so opening the cache never has to scan the directory.
+ *
+ * Journal lines look like:
+ *
+ * <pre>
+ * DIRTY 1b2c...           an edit has started
+ * CLEAN 1b2c... 4096      an edit finished, the file is 4096 bytes
+ * CLEAN 1b2c... 4096 meta as above, with metadata attached to the entry
+ * REMOVE 1b2c...          the entry was removed or its edit aborted
+ * READ 1b2c...            the entry was read (LRU bookkeeping only)
+ * </pre>
+ * */
+public class BitmapDiskCache {
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String MAGIC = "com.anypresence.library.BitmapDiskCache";
+    static final String VERSION = "1";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private long mMaxSize;
+    private long mSize;
+    private Writer mJournalWriter;
+    private int mRedundantOpCount;
+
+    private BitmapDiskCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mJournalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+    }
+
+    /**
+     * Opens the cache in the directory, creating it if needed. If the journal
+     * is missing or corrupt, the directory is wiped and a new cache started.
+     * */
+    public static BitmapDiskCache open(File directory, long maxSize) throws IOException {
+        BitmapDiskCache cache = new BitmapDiskCache(directory, maxSize);
+        if(cache.mJournalFile.exists()) {
+            try {
+                cache.readJournal();
+                cache.mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cache.mJournalFile, true), "US-ASCII"));
+                return cache;
+            }
+            catch(IOException e) {
+                Log.w(AnyPresenceActivity.TAG, "Disk cache " + directory + " is corrupt, rebuilding", e);
+                deleteContents(directory);
+            }
+        }
+
+        directory.mkdirs();
+        cache = new BitmapDiskCache(directory, maxSize);
+        cache.rebuildJournal();
+        return cache;
+    }
+
+    /**
+     * Returns the file for the key, or null if it isn't cached. The file
+     * must not be modified.
+     * */
+    public synchronized File get(String key) {
+        Entry entry = mEntries.get(hashKey(key));
+        if(entry == null || !entry.mReadable) return null;
+
+        File file = entry.getCleanFile();
+        if(!file.exists()) {
+            // Deleted out from under us, probably by the system clearing the cache dir
+            removeEntry(entry);
+            return null;
+        }
+
+        mRedundantOpCount++;
+        writeJournal(READ + ' ' + entry.mKey);
+        compactIfNeeded();
+        return file;
+    }
+
+    /**
+     * Returns the metadata committed with the key's entry, or null if there
+     * is none or the key isn't cached.
+     * */
+    public synchronized String getMetadata(String key) {
+        Entry entry = mEntries.get(hashKey(key));
+        if(entry == null || !entry.mReadable) return null;
+        return entry.mMetadata;
+    }
+
+    /**
+     * Starts an edit for the key. Returns null if another edit for the same
+     * key is in progress.
+     * */
+    public synchronized Editor edit(String key) {
+        String hash = hashKey(key);
+        Entry entry = mEntries.get(hash);
+        if(entry == null) {
+            entry = new Entry(hash);
+            mEntries.put(hash, entry);
+        }
+        else if(entry.mEditor != null) {
+            return null;
+        }
+
+        Editor editor = new Editor(entry);
+        entry.mEditor = editor;
+        writeJournal(DIRTY + ' ' + hash);
+        return editor;
+    }
+
+    /**
+     * Removes the entry for the key. Returns true if something was removed.
+     * */
+    public synchronized boolean remove(String key) {
+        Entry entry = mEntries.get(hashKey(key));
+        if(entry == null || entry.mEditor != null) return false;
+        removeEntry(entry);
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes currently stored.
+     * */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the maximum number of bytes the cache may store.
+     * */
+    public synchronized long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Changes the maximum number of bytes the cache may store, evicting
+     * entries if needed.
+     * */
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Evicts least recently used entries until the cache is at or under the
+     * size.
+     * */
+    public synchronized void trimToSize(long maxSize) {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while(mSize > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if(entry.mEditor != null || !entry.mReadable) continue;
+            iterator.remove();
+            deleteEntryFiles(entry);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes every entry that isn't being edited.
+     * */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Returns a fixed-length, filesystem safe name for the key.
+     * */
+    public static String hashKey(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for(byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void readJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), "US-ASCII"));
+        try {
+            if(!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+
+            int lineCount = 0;
+            String line;
+            while((line = reader.readLine()) != null) {
+                readJournalLine(line);
+                lineCount++;
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+        }
+        finally {
+            reader.close();
+        }
+
+        // Anything still dirty was interrupted mid-write. Throw it away.
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while(iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if(entry.mEditor != null) {
+                entry.mEditor = null;
+                entry.getDirtyFile().delete();
+                if(!entry.mReadable) {
+                    iterator.remove();
+                    continue;
+                }
+            }
+            mSize += entry.mLength;
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if(parts.length < 2) throw new IOException("Unexpected journal line: " + line);
+
+        String op = parts[0];
+        String key = parts[1];
+        if(REMOVE.equals(op)) {
+            mEntries.remove(key);
+            return;
+        }
+
+        Entry entry = mEntries.get(key);
+        if(entry == null) {
+            entry = new Entry(key);
+            mEntries.put(key, entry);
+        }
+
+        if(CLEAN.equals(op) && (parts.length == 3 || parts.length == 4)) {
+            try {
+                entry.mLength = Long.parseLong(parts[2]);
+            }
+            catch(NumberFormatException e) {
+                throw new IOException("Unexpected journal line: " + line);
+            }
+            entry.mMetadata = parts.length == 4 ? parts[3] : null;
+            entry.mReadable = true;
+            entry.mEditor = null;
+        }
+        else if(DIRTY.equals(op) && parts.length == 2) {
+            // Only a marker. The real editor is never recreated.
+            entry.mEditor = new Editor(entry);
+        }
+        else if(!READ.equals(op) || parts.length != 2) {
+            throw new IOException("Unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * Writes a fresh journal containing only the current state, then swaps
+     * it in for the old one.
+     * */
+    private synchronized void rebuildJournal() throws IOException {
+        if(mJournalWriter != null) mJournalWriter.close();
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFileTmp), "US-ASCII"));
+        try {
+            writer.write(MAGIC + '\n' + VERSION + '\n');
+            for(Entry entry : mEntries.values()) {
+                if(entry.mEditor != null) {
+                    writer.write(DIRTY + ' ' + entry.mKey + '\n');
+                }
+                else {
+                    writer.write(cleanLine(entry) + '\n');
+                }
+            }
+        }
+        finally {
+            writer.close();
+        }
+
+        if(!mJournalFileTmp.renameTo(mJournalFile)) throw new IOException("Couldn't rename " + mJournalFileTmp);
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, true), "US-ASCII"));
+        mRedundantOpCount = 0;
+    }
+
+    private void compactIfNeeded() {
+        if(mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOpCount >= mEntries.size()) {
+            try {
+                rebuildJournal();
+            }
+            catch(IOException e) {
+                Log.w(AnyPresenceActivity.TAG, "Failed to compact disk cache journal", e);
+            }
+        }
+    }
+
+    private static String cleanLine(Entry entry) {
+        String line = CLEAN + ' ' + entry.mKey + ' ' + entry.mLength;
+        return entry.mMetadata == null ? line : line + ' ' + entry.mMetadata;
+    }
+
+    private void writeJournal(String line) {
+        try {
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+            mJournalWriter.flush();
+        }
+        catch(IOException e) {
+            Log.w(AnyPresenceActivity.TAG, "Failed to write disk cache journal", e);
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        mEntries.remove(entry.mKey);
+        deleteEntryFiles(entry);
+    }
+
+    private void deleteEntryFiles(Entry entry) {
+        entry.getCleanFile().delete();
+        if(entry.mReadable) mSize -= entry.mLength;
+        entry.mReadable = false;
+        mRedundantOpCount++;
+        writeJournal(REMOVE + ' ' + entry.mKey);
+    }
+
+    private synchronized void completeEdit(Editor editor, boolean success) {
+        Entry entry = editor.mEntry;
+        if(entry.mEditor != editor) return;
+        entry.mEditor = null;
+
+        File dirty = entry.getDirtyFile();
+        if(success && dirty.exists()) {
+            File clean = entry.getCleanFile();
+            long length = dirty.length();
+            if(dirty.renameTo(clean)) {
+                if(entry.mReadable) mSize -= entry.mLength;
+                entry.mLength = length;
+                entry.mMetadata = editor.mMetadata;
+                entry.mReadable = true;
+                mSize += length;
+                mRedundantOpCount++;
+                writeJournal(cleanLine(entry));
+                trimToSize(mMaxSize);
+                return;
+            }
+        }
+
+        dirty.delete();
+        if(entry.mReadable) {
+            // The old value is still good. A commit without a new value only
+            // replaces the metadata.
+            if(success && editor.mHasMetadata) entry.mMetadata = editor.mMetadata;
+            mRedundantOpCount++;
+            writeJournal(cleanLine(entry));
+        }
+        else {
+            mEntries.remove(entry.mKey);
+            mRedundantOpCount++;
+            writeJournal(REMOVE + ' ' + entry.mKey);
+        }
+        compactIfNeeded();
+    }
+
+    private static void deleteContents(File directory) {
+        File[] files = directory.listFiles();
+        if(files == null) return;
+        for(File file : files) {
+            if(file.isDirectory()) deleteContents(file);
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes a single entry. Nothing is visible to readers until commit().
+     * */
+    public final class Editor {
+        private final Entry mEntry;
+        private final ArrayList<OutputStream> mStreams = new ArrayList<OutputStream>(1);
+        private String mMetadata;
+        private boolean mHasMetadata;
+
+        private Editor(Entry entry) {
+            mEntry = entry;
+        }
+
+        /**
+         * Set a short string to store alongside the value, or null for none.
+         * It can't contain whitespace. Committing without writing a new
+         * value keeps the old value and only replaces its metadata.
+         * */
+        public void setMetadata(String metadata) {
+            if(metadata != null && (metadata.length() == 0 || metadata.matches(".*\\s.*"))) {
+                throw new IllegalArgumentException("Metadata can't be empty or contain whitespace: " + metadata);
+            }
+            mMetadata = metadata;
+            mHasMetadata = true;
+        }
+
+        /**
+         * Returns a stream to write the new value to.
+         * */
+        public OutputStream newOutputStream() throws FileNotFoundException {
+            OutputStream os = new FileOutputStream(mEntry.getDirtyFile());
+            synchronized(mStreams) {
+                mStreams.add(os);
+            }
+            return os;
+        }
+
+        /**
+         * Publishes the written value.
+         * */
+        public void commit() {
+            closeStreams();
+            completeEdit(this, true);
+        }
+
+        /**
+         * Throws away the written value. The previous value, if any, is kept.
+         * */
+        public void abort() {
+            closeStreams();
+            completeEdit(this, false);
+        }
+
+        private void closeStreams() {
+            synchronized(mStreams) {
+                for(OutputStream os : mStreams) {
+                    try {
+                        os.close();
+                    }
+                    catch(IOException e) {}
+                }
+                mStreams.clear();
+            }
+        }
+    }
+
+    private final class Entry {
+        private final String mKey;
+        private long mLength;
+        private String mMetadata;
+        private boolean mReadable;
+        private Editor mEditor;
+
+        private Entry(String key) {
+            mKey = key;
+        }
+
+        private File getCleanFile() {
+            return new File(mDirectory, mKey);
+        }
+
+        private File getDirtyFile() {
+            return new File(mDirectory, mKey + TMP_SUFFIX);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.anypresence.library;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+/**
+ * An in-memory LRU cache of decoded bitmaps, sized in bytes rather than
+ * entries.
+ * */
+public class BitmapMemoryCache extends LruCache<String, Bitmap> {
+    private OnEvictListener mOnEvictListener;
+    private BitmapPool mBitmapPool;
+
+    public BitmapMemoryCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap value) {
+        // A bitmap decoded into a bigger pooled one holds the whole allocation
+        return BitmapPool.getAllocationByteCount(value);
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+        if(evicted && mOnEvictListener != null) mOnEvictListener.onEvict(key, oldValue);
+        if(evicted && mBitmapPool != null) mBitmapPool.release(oldValue);
+    }
+
+    /**
+     * Set the pool evicted bitmaps are handed to for reuse.
+     * */
+    void setBitmapPool(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Get the active OnEvictListener
+     * */
+    public OnEvictListener getOnEvictListener() {
+        return mOnEvictListener;
+    }
+
+    /**
+     * Set an OnEvictListener. Called whenever a bitmap is pushed out to make
+     * room for a newer one.
+     * */
+    public void setOnEvictListener(OnEvictListener onEvictListener) {
+        mOnEvictListener = onEvictListener;
+    }
+
+    /**
+     * Returns the number of bytes a bitmap occupies. Bitmap.getByteCount()
+     * isn't available before Honeycomb MR1, so compute it by hand.
+     * */
+    static int getByteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * A listener for when a bitmap is evicted from the cache.
+     * */
+    public static interface OnEvictListener {
+        public void onEvict(String key, Bitmap bitmap);
+    }
+}
@@ -0,0 +1,248 @@
+package com.anypresence.library;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * A pool of bitmaps that are no longer shown anywhere and can be decoded into
+ * with BitmapFactory.Options.inBitmap, instead of allocating a new bitmap for
+ * every image bind. Bitmaps are bucketed by allocation size and the pool is
+ * bounded in bytes; the least recently pooled bitmaps are dropped first.
+ *
+ * Bitmaps evicted from the memory cache are only pooled once no target is
+ * displaying them. Targets are held weakly, so one that's garbage collected
+ * without being cleared doesn't keep its bitmap out of the pool. That only
+ * works for targets that live as long as the bitmap is shown, like views;
+ * bitmaps handed anywhere else should be kept out with keepOut().
+ * */
+public class BitmapPool {
+    // KitKat can decode into any bitmap that's big enough, but don't waste
+    // more than this multiple of the needed memory doing it.
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets = new TreeMap<Integer, LinkedList<Bitmap>>();
+    private final LinkedHashSet<Bitmap> mOrder = new LinkedHashSet<Bitmap>();
+    private final WeakHashMap<Object, Bitmap> mDisplayed = new WeakHashMap<Object, Bitmap>();
+    private final LinkedHashSet<Bitmap> mPendingRelease = new LinkedHashSet<Bitmap>();
+    private final WeakHashMap<Bitmap, Boolean> mKeptOut = new WeakHashMap<Bitmap, Boolean>();
+    private int mMaxSize;
+    private int mSize;
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    public BitmapPool(int maxBytes) {
+        mMaxSize = maxBytes;
+    }
+
+    /**
+     * Returns true if this version of Android can decode into an existing
+     * bitmap.
+     * */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Returns a pooled bitmap that a decode of width x height in the config
+     * can reuse, or null. Before KitKat the bitmap has to match exactly and
+     * the decode can't be subsampled.
+     * */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int needed = width * height * getBytesPerPixel(config);
+        Bitmap result = null;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Integer size = mBuckets.ceilingKey(needed);
+            if(size != null && size <= needed * MAX_SIZE_MULTIPLE) {
+                result = mBuckets.get(size).getFirst();
+            }
+        }
+        else {
+            LinkedList<Bitmap> bucket = mBuckets.get(needed);
+            if(bucket != null) {
+                for(Bitmap bitmap : bucket) {
+                    if(bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+                        result = bitmap;
+                        break;
+                    }
+                }
+            }
+        }
+
+        if(result == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        removeFromPool(result);
+        return result;
+    }
+
+    /**
+     * Adds a bitmap to the pool. Returns false if it can't be reused.
+     * */
+    public synchronized boolean put(Bitmap bitmap) {
+        if(!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return false;
+        if(mKeptOut.containsKey(bitmap)) return false;
+        int size = getAllocationByteCount(bitmap);
+        if(size > mMaxSize || mOrder.contains(bitmap)) return false;
+
+        LinkedList<Bitmap> bucket = mBuckets.get(size);
+        if(bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.addLast(bitmap);
+        mOrder.add(bitmap);
+        mSize += size;
+        mPutCount++;
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Record that the target now shows the bitmap, or nothing if null.
+     * Whatever the target showed before is pooled if it was waiting on that.
+     * */
+    public synchronized void setDisplayed(Object target, Bitmap bitmap) {
+        Bitmap previous = bitmap == null ? mDisplayed.remove(target) : mDisplayed.put(target, bitmap);
+        if(previous != null && previous != bitmap) releasePending();
+    }
+
+    /**
+     * Never pool the bitmap, e.g. because it was passed to code that won't
+     * say when it stops showing it.
+     * */
+    public synchronized void keepOut(Bitmap bitmap) {
+        if(bitmap == null) return;
+        mKeptOut.put(bitmap, Boolean.TRUE);
+        mPendingRelease.remove(bitmap);
+    }
+
+    /**
+     * Offer a bitmap that the caller no longer needs. It's pooled right away
+     * if nothing displays it, otherwise once the last target lets go.
+     * */
+    public synchronized void release(Bitmap bitmap) {
+        if(bitmap == null) return;
+        mPendingRelease.add(bitmap);
+        releasePending();
+    }
+
+    /**
+     * Pool the released bitmaps that no target shows anymore. Targets are
+     * only weakly held, so a target that was garbage collected stops counting
+     * here too, without ever being told.
+     * */
+    private void releasePending() {
+        if(mPendingRelease.isEmpty()) return;
+        Set<Bitmap> displayed = new HashSet<Bitmap>(mDisplayed.values());
+        Iterator<Bitmap> iterator = mPendingRelease.iterator();
+        while(iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if(!displayed.contains(bitmap)) {
+                iterator.remove();
+                put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Drops the least recently pooled bitmaps until the pool is at or under
+     * the size.
+     * */
+    public synchronized void trimToSize(int maxBytes) {
+        Iterator<Bitmap> iterator = mOrder.iterator();
+        while(mSize > maxBytes && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+            removeFromBucket(bitmap);
+            mEvictionCount++;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Drops every pooled bitmap.
+     * */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Changes the maximum number of bytes the pool may hold.
+     * */
+    public synchronized void setMaxSize(int maxBytes) {
+        mMaxSize = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]", mSize, mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+
+    private void removeFromPool(Bitmap bitmap) {
+        mOrder.remove(bitmap);
+        removeFromBucket(bitmap);
+    }
+
+    private void removeFromBucket(Bitmap bitmap) {
+        int size = getAllocationByteCount(bitmap);
+        LinkedList<Bitmap> bucket = mBuckets.get(size);
+        if(bucket != null && bucket.remove(bitmap)) {
+            mSize -= size;
+            if(bucket.isEmpty()) mBuckets.remove(size);
+        }
+    }
+
+    @SuppressLint("NewApi")
+    static int getAllocationByteCount(Bitmap bitmap) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return BitmapMemoryCache.getByteCount(bitmap);
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if(config == Bitmap.Config.ARGB_8888) return 4;
+        if(config == Bitmap.Config.ALPHA_8) return 1;
+        return 2;
+    }
+}
@@ -1,184 +1,573 @@
 package com.anypresence.library;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
-import android.support.v4.util.LruCache;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 
 /**
  * A class for loading an image from a URL into an ImageView.
+ *
+ * This is no longer an AsyncTask. Start it with executeAsync() and stop it
+ * with cancel(). The AsyncTask methods it used to have still work, but are
+ * deprecated: a subclass that overrides doInBackground() is run on its own
+ * AsyncTask thread like before, instead of sharing loads with other tasks.
  * */
-public class BitmapTask extends AsyncTask<Void, Void, Bitmap> {
-    private static final LruCache<String, Bitmap> LOADED_BITMAPS = new LruCache<String, Bitmap>(4 * 1024 * 1024);
+public class BitmapTask {
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    private static final Map<Class<?>, Boolean> OVERRIDES_DO_IN_BACKGROUND = new HashMap<Class<?>, Boolean>();
 
     private final ImageView mImageView;
     private final String mURL;
+    private final int mWidth;
+    private final int mHeight;
+    private int mTargetWidth;
+    private int mTargetHeight;
+    private boolean mAllowRgb565;
+    private Transformation mTransformation;
+    private ImageRequestRegistry.Subscription mSubscription;
+    private volatile boolean mIsCancelled;
+    private volatile boolean mIsDelivered;
+    private boolean mIsStarted;
+    private Bitmap mResult;
+    private ViewTreeObserver.OnPreDrawListener mLayoutListener;
+    private boolean mIsFetchWanted;
+    // An OnAttachStateChangeListener, typed as Object so this class still
+    // loads on Gingerbread
+    private Object mDetachListener;
 
     public BitmapTask(ImageView imageView, String url) {
+        this(imageView, url, 0, 0);
+    }
+
+    /**
+     * Load the image at roughly width x height. Pass 0 to measure the
+     * ImageView instead.
+     * */
+    public BitmapTask(ImageView imageView, String url, int width, int height) {
         this.mImageView = imageView;
         mURL = url;
+        mWidth = width;
+        mHeight = height;
     }
 
-    @Override
-    protected Bitmap doInBackground(Void... args) {
-        return getImageBitmap(mURL);
+    /**
+     * Allow opaque images (jpegs) to be decoded as RGB_565, which takes half
+     * the memory. Defaults to false.
+     * */
+    public void setAllowRgb565(boolean allowRgb565) {
+        mAllowRgb565 = allowRgb565;
+    }
+
+    /**
+     * Transform the bitmap on the decode thread before it's cached and
+     * shown. Defaults to null.
+     * */
+    public void setTransformation(Transformation transformation) {
+        mTransformation = transformation;
     }
 
-    private Bitmap getImageBitmap(String url) {
-        Bitmap bitmap = null;
+    /**
+     * Returns the context used to reach the image caches.
+     * */
+    protected Context getContext() {
+        return mImageView.getContext();
+    }
 
-        if(url != null && !"".equals(url)) {
-            try {
-                URL aURL = new URL(url);
-                URLConnection conn = aURL.openConnection();
-                conn.connect();
-                InputStream is = conn.getInputStream();
-                BufferedInputStream bis = new BufferedInputStream(is);
-                bitmap = BitmapFactory.decodeStream(bis);
-                bis.close();
-                is.close();
+    /**
+     * Returns the size passed to the constructor, 0 if none.
+     * */
+    protected int getRequestedWidth() {
+        return mWidth;
+    }
 
-                cacheBitmap(mImageView.getContext(), bitmap, url);
-            }
-            catch(IOException e) {
-                Log.e(AnyPresenceActivity.TAG, "Error getting bitmap from url " + url, e);
-            }
+    protected int getRequestedHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Set the size to decode at. For use by measureTarget().
+     * */
+    protected void setTargetSize(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
+    }
+
+    /**
+     * Works out the size to decode at. Explicit sizes win, then the laid out
+     * size of the ImageView, then its layout params, then the screen. Not
+     * called before the target is laid out unless isReadyToMeasure() says so.
+     * */
+    protected void measureTarget() {
+        mTargetWidth = mWidth;
+        mTargetHeight = mHeight;
+        if(mTargetWidth > 0 && mTargetHeight > 0) return;
+
+        if(mImageView != null) {
+            int width = mImageView.getWidth() - mImageView.getPaddingLeft() - mImageView.getPaddingRight();
+            int height = mImageView.getHeight() - mImageView.getPaddingTop() - mImageView.getPaddingBottom();
+            ViewGroup.LayoutParams params = mImageView.getLayoutParams();
+            if(width <= 0 && params != null) width = params.width;
+            if(height <= 0 && params != null) height = params.height;
+            if(mTargetWidth <= 0 && width > 0) mTargetWidth = width;
+            if(mTargetHeight <= 0 && height > 0) mTargetHeight = height;
         }
 
-        return bitmap;
+        DisplayMetrics metrics = getContext().getResources().getDisplayMetrics();
+        if(mTargetWidth <= 0) mTargetWidth = metrics.widthPixels;
+        if(mTargetHeight <= 0) mTargetHeight = metrics.heightPixels;
+    }
+
+    /**
+     * Returns true if measureTarget() would get the size the target ends up
+     * with. Before the first layout a view is 0x0, and measuring it would
+     * key the bitmap on the screen size instead, so the task waits for
+     * layout.
+     * */
+    protected boolean isReadyToMeasure() {
+        if(mWidth > 0 && mHeight > 0) return true;
+        if(!(getTarget() instanceof View)) return true;
+
+        View view = (View) getTarget();
+        if(view.getWidth() > 0 || view.getHeight() > 0) return true;
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        return params != null && params.width > 0 && params.height > 0;
+    }
+
+    /**
+     * Returns the key this task's bitmap is cached under. The same url
+     * decoded for different sizes or transformations is cached separately.
+     * */
+    protected String getCacheKey() {
+        return createCacheKey(mURL, mTargetWidth, mTargetHeight, mAllowRgb565, mTransformation);
+    }
+
+    static String createCacheKey(String url, int width, int height, boolean allowRgb565, Transformation transformation) {
+        return url + "#" + width + "x" + height + (allowRgb565 ? "#565" : "") + (transformation != null ? "#" + transformation.getKey() : "");
+    }
+
+    String getURL() {
+        return mURL;
+    }
+
+    int getTargetWidth() {
+        return mTargetWidth;
     }
 
-    private File getCacheFile(Context context, String url) {
-        if(url != null && !"".equals(url)) {
-            try {
-                return new File(context.getCacheDir() + File.separator + URLEncoder.encode(url, "UTF-8"));
+    int getTargetHeight() {
+        return mTargetHeight;
+    }
+
+    boolean getAllowRgb565() {
+        return mAllowRgb565;
+    }
+
+    Transformation getTransformation() {
+        return mTransformation;
+    }
+
+    private Bitmap loadMemCache(Context context, String key) {
+        if(mURL != null && !"".equals(mURL)) {
+            if(Debug.isEnabled()) Log.d(AnyPresenceActivity.TAG, "Grabbing bitmap from memory with key: " + key);
+            Bitmap bitmap = ImageCache.getMemoryCache(context).get(key);
+            if(bitmap != null) {
+                ImageMetrics.count(ImageMetrics.MEMORY_HIT);
+                return bitmap;
             }
-            catch(UnsupportedEncodingException e) {
-                e.printStackTrace();
+            else {
+                ImageMetrics.count(ImageMetrics.MEMORY_MISS);
+                if(Debug.isEnabled()) Log.d(AnyPresenceActivity.TAG, "But there was no bitmap in memory");
             }
         }
         return null;
     }
 
     /**
-     * Save bitmap to cache dir for quicker loading
+     * Returns true if this is still the latest task started for the target
+     * view. A recycled row may have been rebound since the task started, and
+     * its result must not replace the newer image.
      * */
-    private void cacheBitmap(Context context, Bitmap bitmap, String url) {
-        if(url != null && !"".equals(url)) {
+    protected boolean isBound() {
+        if(!(getTarget() instanceof View)) return true;
+        return ((View) getTarget()).getTag(R.id.ap_image_request) == this;
+    }
 
-            Log.d(AnyPresenceActivity.TAG, "Saving bitmap to memory.");
-            if(bitmap != null) LOADED_BITMAPS.put(url, bitmap);
+    /**
+     * Returns the latest task started for the view, or null.
+     * */
+    static BitmapTask getBoundTask(View view) {
+        Object task = view.getTag(R.id.ap_image_request);
+        return task instanceof BitmapTask ? (BitmapTask) task : null;
+    }
 
-            File cache = getCacheFile(context, url);
-            Log.d(AnyPresenceActivity.TAG, "Got cache file at " + cache);
+    /**
+     * Returns true if the task was started and hasn't delivered or been
+     * cancelled yet.
+     * */
+    boolean isLoading() {
+        return !mIsDelivered && !mIsCancelled;
+    }
 
-            if(!cache.isDirectory()) {
-                Log.d(AnyPresenceActivity.TAG, "Saving bitmap to disk now.");
+    /**
+     * Returns true if the other task would load the same image into the
+     * same kind of target.
+     * */
+    boolean isSameRequest(BitmapTask other) {
+        if(getClass() != other.getClass() || mURL == null || !mURL.equals(other.mURL) || mWidth != other.mWidth || mHeight != other.mHeight
+                || mAllowRgb565 != other.mAllowRgb565) {
+            return false;
+        }
+        if(mTransformation == null || other.mTransformation == null) return mTransformation == other.mTransformation;
+        return mTransformation.getKey().equals(other.mTransformation.getKey());
+    }
 
-                cache.delete();
+    /**
+     * Start loading. A bitmap already in memory is applied immediately,
+     * otherwise the task joins (or starts) the shared request for its url and
+     * size.
+     * */
+    public void executeAsync(Void... args) {
+        if(!executeFromMemory()) executeFromRequest();
+    }
 
-                try {
-                    FileOutputStream fos = new FileOutputStream(cache);
-                    bitmap.compress(Bitmap.CompressFormat.PNG, 90, fos);
-                    fos.close();
-                    Log.d(AnyPresenceActivity.TAG, "Bitmap saved to disk.");
-                }
-                catch(FileNotFoundException e) {
-                    e.printStackTrace();
-                }
-                catch(IOException e) {
-                    e.printStackTrace();
-                }
-                catch(NullPointerException e) {
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * Binds the url to the ImageView and applies the bitmap if it's already
+     * in memory. Returns false if the image still has to be loaded. If the
+     * target isn't laid out yet, the memory cache is checked once it is.
+     * */
+    boolean executeFromMemory() {
+        // The view's token. Results from older tasks are ignored.
+        if(getTarget() instanceof View) ((View) getTarget()).setTag(R.id.ap_image_request, this);
+        if(!mIsStarted) {
+            mIsStarted = true;
+            onPreExecute();
+        }
+
+        if(overridesDoInBackground()) {
+            executeInBackground();
+            return true;
+        }
+        if(!isReadyToMeasure()) {
+            waitForLayout((View) getTarget());
+            return false;
+        }
+        return loadFromMemory();
+    }
+
+    private boolean loadFromMemory() {
+        measureTarget();
+
+        Bitmap bitmap = loadMemCache(getContext(), getCacheKey());
+        if(bitmap != null) {
+            deliver(bitmap);
+            return true;
+        }
+        return mURL == null || "".equals(mURL);
+    }
+
+    /**
+     * Joins (or starts) the shared request. Only call once
+     * executeFromMemory() has returned false. Waits for layout if
+     * executeFromMemory() is still waiting.
+     * */
+    void executeFromRequest() {
+        if(mIsCancelled || !isBound()) return;
+        if(mLayoutListener != null) {
+            mIsFetchWanted = true;
+            return;
         }
+        mSubscription = ImageRequestRegistry.subscribe(this);
+        watchForDetach();
     }
 
     /**
-     * Load bitmap from cache dir
+     * Measure and load once the view has been laid out, just before it's
+     * first drawn.
      * */
-    private Bitmap loadCache(Context context, String url) {
-        if(url != null && !"".equals(url)) {
-            File cache = getCacheFile(context, url);
+    private void waitForLayout(final View view) {
+        mLayoutListener = new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                stopWaitingForLayout(view);
+                if(mIsCancelled || !isBound()) return true;
+                if(!loadFromMemory() && mIsFetchWanted) executeFromRequest();
+                return true;
+            }
+        };
+        view.getViewTreeObserver().addOnPreDrawListener(mLayoutListener);
+    }
 
-            if(!cache.isDirectory()) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                Bitmap bitmap = BitmapFactory.decodeFile(cache.toString(), options);
+    private void stopWaitingForLayout(View view) {
+        if(mLayoutListener == null) return;
+        ViewTreeObserver observer = view.getViewTreeObserver();
+        if(observer.isAlive()) observer.removeOnPreDrawListener(mLayoutListener);
+        mLayoutListener = null;
+    }
 
-                return bitmap;
+    /**
+     * Runs a subclass's doInBackground() the way AsyncTask did.
+     * */
+    private void executeInBackground() {
+        new AsyncTask<Void, Void, Bitmap>() {
+            @Override
+            protected Bitmap doInBackground(Void... args) {
+                return mIsCancelled ? null : BitmapTask.this.doInBackground(args);
             }
-            else {
-                return null;
+
+            @Override
+            protected void onPostExecute(Bitmap result) {
+                deliver(result);
             }
-        }
-        return null;
+        }.execute();
     }
 
-    private Bitmap loadMemCache(String url) {
-        if(url != null && !"".equals(url)) {
-            Log.d(AnyPresenceActivity.TAG, "Grabbing bitmap from memory with key: " + url);
-            Bitmap bitmap = LOADED_BITMAPS.get(url);
-            if(bitmap != null) {
-                return bitmap;
-            }
-            else {
-                Log.d(AnyPresenceActivity.TAG, "But there was no bitmap in memory");
+    private boolean overridesDoInBackground() {
+        Boolean overrides = OVERRIDES_DO_IN_BACKGROUND.get(getClass());
+        if(overrides == null) {
+            overrides = false;
+            for(Class<?> clazz = getClass(); clazz != BitmapTask.class; clazz = clazz.getSuperclass()) {
+                try {
+                    clazz.getDeclaredMethod("doInBackground", Void[].class);
+                    overrides = true;
+                    break;
+                }
+                catch(NoSuchMethodException e) {
+                    // Not in this class
+                }
             }
+            OVERRIDES_DO_IN_BACKGROUND.put(getClass(), overrides);
         }
-        return null;
+        return overrides;
     }
 
+    /**
+     * Drop the load if the target leaves the window, e.g. the fragment was
+     * torn down or the pager discarded the page.
+     * */
     @SuppressLint("NewApi")
-    public void executeAsync(Void... args) {
-        Bitmap bitmap = loadMemCache(mURL);
-        if(bitmap != null) {
-            mImageView.setImageBitmap(bitmap);
-        }
-        else {
-            if(android.os.Build.VERSION.SDK_INT < 11) {
-                execute(args);
-            }
-            else {
-                executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, args);
+    private void watchForDetach() {
+        if(!(getTarget() instanceof View) || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB_MR1) return;
+
+        mDetachListener = new View.OnAttachStateChangeListener() {
+            @Override
+            public void onViewAttachedToWindow(View v) {}
+
+            @Override
+            public void onViewDetachedFromWindow(View v) {
+                cancel(true);
             }
+        };
+        ((View) getTarget()).addOnAttachStateChangeListener((View.OnAttachStateChangeListener) mDetachListener);
+    }
+
+    @SuppressLint("NewApi")
+    private void stopWatchingForDetach() {
+        if(mDetachListener == null) return;
+        ((View) getTarget()).removeOnAttachStateChangeListener((View.OnAttachStateChangeListener) mDetachListener);
+        mDetachListener = null;
+    }
+
+    /**
+     * Stop waiting on the image. The underlying fetch is only stopped if no
+     * other task wants the same image.
+     * */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if(mIsCancelled) return false;
+        synchronized(this) {
+            mIsCancelled = true;
+            notifyAll();
         }
+        if(mSubscription != null) mSubscription.cancel();
+        if(mLayoutListener != null) stopWaitingForLayout((View) getTarget());
+        stopWatchingForDetach();
+        if(mIsStarted && !mIsDelivered) onCancelled();
+        return true;
     }
 
-    @Override
-    protected void onPreExecute() {
-        super.onPreExecute();
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
 
-        Bitmap bitmap = loadCache(mImageView.getContext(), mURL);
-        if(bitmap != null) {
-            mImageView.setImageBitmap(bitmap);
+    /**
+     * Called by the shared request on the main thread.
+     * */
+    void deliver(Bitmap result) {
+        if(mIsCancelled || mIsDelivered) return;
+        synchronized(this) {
+            mIsDelivered = true;
+            mResult = result;
+            notifyAll();
+        }
+        stopWatchingForDetach();
+
+        // The view moved on. The bitmap is still cached for when it's
+        // needed again.
+        if(!isBound()) {
+            ImageMetrics.count(ImageMetrics.STALE_RESULT_SUPPRESSED);
+            return;
+        }
 
-            Log.d(AnyPresenceActivity.TAG, "Saving bitmap to memory.");
-            LOADED_BITMAPS.put(mURL, bitmap);
+        // Keep the bitmap out of the reuse pool while it's on screen. Only a
+        // view is known to hold it for as long as it's shown.
+        if(result != null) {
+            BitmapPool pool = ImageCache.getBitmapPool(getContext());
+            if(getTarget() instanceof View) pool.setDisplayed(getTarget(), result);
+            else pool.keepOut(result);
         }
+        onPostExecute(result);
     }
 
-    @Override
+    /**
+     * Returns the object the bitmap is displayed in.
+     * */
+    protected Object getTarget() {
+        return mImageView != null ? mImageView : this;
+    }
+
+    /**
+     * Called on the main thread with the loaded bitmap, or null if it
+     * couldn't be loaded. Not called if the target view has been bound to a
+     * newer task.
+     * */
     protected void onPostExecute(Bitmap result) {
-        super.onPostExecute(result);
+        if(result != null && mImageView != null) mImageView.setImageBitmap(result);
+    }
+
+    /**
+     * @deprecated Use executeAsync().
+     * */
+    @Deprecated
+    public final BitmapTask execute(Void... args) {
+        executeAsync(args);
+        return this;
+    }
 
-        if(result != null) mImageView.setImageBitmap(result);
+    /**
+     * @deprecated Check isCancelled(), or override onPostExecute() to know
+     * when the task is done.
+     * */
+    @Deprecated
+    public final AsyncTask.Status getStatus() {
+        if(!mIsStarted) return AsyncTask.Status.PENDING;
+        return mIsDelivered || mIsCancelled ? AsyncTask.Status.FINISHED : AsyncTask.Status.RUNNING;
+    }
+
+    /**
+     * Waits for the bitmap, which may be null. Throws IllegalStateException
+     * if called on the main thread before the result arrives, since that's
+     * the thread it's delivered on.
+     *
+     * @deprecated Override onPostExecute() instead.
+     * */
+    @Deprecated
+    public final Bitmap get() throws InterruptedException, ExecutionException {
+        return await(0);
+    }
+
+    /**
+     * @deprecated Override onPostExecute() instead.
+     * */
+    @Deprecated
+    public final Bitmap get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        Bitmap result = await(Math.max(1, unit.toMillis(timeout)));
+        if(!mIsDelivered) throw new TimeoutException();
+        return result;
+    }
+
+    private synchronized Bitmap await(long timeout) throws InterruptedException {
+        if(!mIsDelivered && !mIsCancelled && Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("get() would block the main thread the result is delivered on");
+        }
+        long deadline = SystemClock.uptimeMillis() + timeout;
+        while(!mIsDelivered && !mIsCancelled) {
+            long wait = timeout == 0 ? 0 : deadline - SystemClock.uptimeMillis();
+            if(timeout != 0 && wait <= 0) break;
+            wait(wait);
+        }
+        if(mIsCancelled) throw new CancellationException();
+        return mResult;
+    }
+
+    /**
+     * Called on the main thread when the task starts.
+     *
+     * @deprecated Set up the view before calling executeAsync() instead.
+     * */
+    @Deprecated
+    protected void onPreExecute() {}
+
+    /**
+     * Called on the main thread when a started task is cancelled before it
+     * delivers.
+     *
+     * @deprecated Cancel through cancel() and clean up there instead.
+     * */
+    @Deprecated
+    protected void onCancelled() {}
+
+    /**
+     * Only called if a subclass overrides it, on an AsyncTask thread. Waits
+     * for the shared request for the image and returns its bitmap, or null.
+     *
+     * @deprecated Override onPostExecute(), or getTarget() and
+     * measureTarget(), instead. A subclass that overrides this doesn't share
+     * loads that are already in flight until it calls through to it.
+     * */
+    @Deprecated
+    protected Bitmap doInBackground(Void... args) {
+        final Bitmap[] result = new Bitmap[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                if(mIsCancelled) {
+                    done.countDown();
+                    return;
+                }
+                measureTarget();
+                Bitmap bitmap = loadMemCache(getContext(), getCacheKey());
+                if(bitmap != null || mURL == null || "".equals(mURL)) {
+                    result[0] = bitmap;
+                    done.countDown();
+                    return;
+                }
+                mSubscription = ImageRequestRegistry.subscribe(BitmapTask.this, new ImageRequest.Listener() {
+                    @Override
+                    public void onComplete(Bitmap bitmap) {
+                        result[0] = bitmap;
+                        done.countDown();
+                    }
+                });
+            }
+        });
+
+        // A cancelled subscription is never called back
+        try {
+            while(!done.await(100, TimeUnit.MILLISECONDS)) {
+                if(mIsCancelled) return null;
+            }
+        }
+        catch(InterruptedException e) {
+            return null;
+        }
+        return result[0];
     }
 }
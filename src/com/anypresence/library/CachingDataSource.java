@@ -0,0 +1,68 @@
+package com.anypresence.library;
+
+import java.util.List;
+
+import com.anypresence.rails_droid.IAPFutureCallback;
+import com.anypresence.rails_droid.RemoteObject;
+import com.anypresence.sdk.callbacks.APCallback;
+
+/**
+ * A DataSource that keeps query results in QueryResultCache. Fresh results
+ * are served without loading. Stale results are served by loadCache() while
+ * loadServer() refreshes them. Everything else is passed to the wrapped
+ * DataSource. Wrap a DeduplicatingDataSource to only refresh a query once at
+ * a time.
+ *
+ * Like the fragments do, call loadCache() and show what it returns before
+ * calling loadServer(). If the cached results are fresh and not empty,
+ * loadServer() doesn't load or call back, since they're already shown.
+ *
+ * Should only be used from the main thread.
+ * */
+public class CachingDataSource<T extends RemoteObject> implements DataSource<T> {
+    private final Class<T> mClazz;
+    private final DataSource<T> mDataSource;
+
+    public CachingDataSource(Class<T> clazz, DataSource<T> dataSource) {
+        mClazz = clazz;
+        mDataSource = dataSource;
+    }
+
+    @Override
+    public List<T> loadCache(Query query) {
+        QueryResultCache.Entry entry = QueryResultCache.get(mClazz, query);
+        if(entry != null) return entry.<T> getItems();
+        return mDataSource.loadCache(query);
+    }
+
+    @Override
+    public void loadServer(final Query query, final IAPFutureCallback<List<T>> callback) {
+        QueryResultCache.Entry entry = QueryResultCache.get(mClazz, query);
+        if(entry != null && entry.isFresh()) {
+            // Callers don't show empty results from loadCache(), so those
+            // still have to be delivered
+            List<T> items = entry.<T> getItems();
+            if(items.isEmpty()) callback.onSuccess(items);
+            return;
+        }
+
+        final int generation = QueryResultCache.getGeneration();
+        mDataSource.loadServer(query, new APCallback<List<T>>() {
+            @Override
+            public void finished(List<T> result, Throwable ex) {
+                if(ex != null) {
+                    callback.onFailure(ex);
+                }
+                else {
+                    QueryResultCache.put(mClazz, query, result, generation);
+                    callback.onSuccess(result);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void fetch(String id, IAPFutureCallback<T> callback) {
+        mDataSource.fetch(id, callback);
+    }
+}
@@ -0,0 +1,69 @@
+package com.anypresence.library;
+
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import android.graphics.BitmapFactory;
+
+/**
+ * Lets an image load be stopped while it's blocked in the network or a
+ * decode. Cancelling disconnects the open connection and asks the running
+ * decode to give up.
+ * */
+class CancelHandle {
+    // Disconnecting can touch the socket, so keep it off the main thread
+    private static final Executor DISCONNECTOR = Executors.newSingleThreadExecutor();
+
+    private volatile boolean mIsCancelled;
+    private HttpURLConnection mConnection;
+    private BitmapFactory.Options mOptions;
+
+    void cancel() {
+        final HttpURLConnection connection;
+        synchronized(this) {
+            if(mIsCancelled) return;
+            mIsCancelled = true;
+            if(mOptions != null) mOptions.requestCancelDecode();
+            connection = mConnection;
+            mConnection = null;
+        }
+        if(connection != null) {
+            DISCONNECTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.disconnect();
+                }
+            });
+        }
+    }
+
+    boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    /**
+     * Throws if the load has been cancelled. Called between reads.
+     * */
+    void throwIfCancelled() throws InterruptedIOException {
+        if(mIsCancelled) throw new InterruptedIOException("Image load cancelled");
+    }
+
+    /**
+     * Track the connection being read, or pass null once it's done.
+     * */
+    synchronized void setConnection(HttpURLConnection connection) {
+        if(mIsCancelled && connection != null) connection.disconnect();
+        else mConnection = connection;
+    }
+
+    /**
+     * Track the options of the decode in progress, or pass null once it's
+     * done.
+     * */
+    synchronized void setOptions(BitmapFactory.Options options) {
+        if(mIsCancelled && options != null) options.requestCancelDecode();
+        mOptions = options;
+    }
+}
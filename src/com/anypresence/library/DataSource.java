@@ -0,0 +1,30 @@
+package com.anypresence.library;
+
+import java.util.List;
+
+import com.anypresence.rails_droid.IAPFutureCallback;
+import com.anypresence.rails_droid.RemoteObject;
+
+/**
+ * Where fragments load their objects from. SdkDataSource, the default,
+ * calls the generated SDK model class. Set another with setDataSource(),
+ * e.g. an in-memory stand-in for tests.
+ * */
+public interface DataSource<T extends RemoteObject> {
+    /**
+     * Returns the locally cached results for the query, or null if there
+     * aren't any. Called on the main thread, so it should be quick.
+     * */
+    public List<T> loadCache(Query query);
+
+    /**
+     * Load the results for the query from the server, calling back on the
+     * main thread.
+     * */
+    public void loadServer(Query query, IAPFutureCallback<List<T>> callback);
+
+    /**
+     * Load a single object by id, calling back on the main thread.
+     * */
+    public void fetch(String id, IAPFutureCallback<T> callback);
+}
@@ -0,0 +1,88 @@
+package com.anypresence.library;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.anypresence.rails_droid.IAPFutureCallback;
+import com.anypresence.rails_droid.RemoteObject;
+import com.anypresence.sdk.callbacks.APCallback;
+
+/**
+ * A DataSource that shares server loads. While a query of a model class is
+ * loading, loading an equal query waits on the same request instead of
+ * starting another. Every caller is called back with its own copy of the
+ * result, so each still decides for itself whether it's stale.
+ *
+ * Should only be used from the main thread.
+ * */
+public class DeduplicatingDataSource<T extends RemoteObject> implements DataSource<T> {
+    private static final Map<String, List<IAPFutureCallback<?>>> IN_FLIGHT = new HashMap<String, List<IAPFutureCallback<?>>>();
+
+    private final Class<T> mClazz;
+    private final DataSource<T> mDataSource;
+
+    public DeduplicatingDataSource(Class<T> clazz, DataSource<T> dataSource) {
+        mClazz = clazz;
+        mDataSource = dataSource;
+    }
+
+    @Override
+    public List<T> loadCache(Query query) {
+        return mDataSource.loadCache(query);
+    }
+
+    @Override
+    public void loadServer(Query query, IAPFutureCallback<List<T>> callback) {
+        // Don't join a load that started before the results were invalidated
+        final String key = QueryResultCache.getGeneration() + "/" + mClazz.getName() + "/" + query.getKey();
+        List<IAPFutureCallback<?>> subscribers = IN_FLIGHT.get(key);
+        if(subscribers != null) {
+            subscribers.add(callback);
+            return;
+        }
+
+        subscribers = new ArrayList<IAPFutureCallback<?>>();
+        subscribers.add(callback);
+        IN_FLIGHT.put(key, subscribers);
+        try {
+            load(query, key);
+        }
+        catch(RuntimeException e) {
+            // Don't leave equal queries waiting on a load that never started
+            if(IN_FLIGHT.get(key) == subscribers) IN_FLIGHT.remove(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Load the query once, calling back everyone subscribed under the key.
+     * */
+    private void load(Query query, final String key) {
+        mDataSource.loadServer(query, new APCallback<List<T>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void finished(List<T> result, Throwable ex) {
+                List<IAPFutureCallback<?>> subscribers = IN_FLIGHT.remove(key);
+                if(subscribers == null) return;
+                for(int i = 0; i < subscribers.size(); i++) {
+                    IAPFutureCallback<List<T>> subscriber = (IAPFutureCallback<List<T>>) subscribers.get(i);
+                    if(ex != null) {
+                        subscriber.onFailure(ex);
+                    }
+                    else {
+                        // The last one can have the original
+                        boolean last = i == subscribers.size() - 1;
+                        subscriber.onSuccess(result == null || last ? result : new ArrayList<T>(result));
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void fetch(String id, IAPFutureCallback<T> callback) {
+        mDataSource.fetch(id, callback);
+    }
+}
@@ -146,6 +146,7 @@ public abstract class EditActivity<T extends RemoteObject> extends UserActivity
                             Toast.makeText(getContext(), R.string.ap_edit_msg_failed, Toast.LENGTH_SHORT).show();
                         }
                         else {
+                            QueryResultCache.invalidate(mItem.getClass());
                             if(arg0 != null) {
                                 // Using a post, so update item
                                 mItem = arg0;
@@ -174,6 +175,7 @@ public abstract class EditActivity<T extends RemoteObject> extends UserActivity
                         Toast.makeText(getContext(), R.string.ap_edit_msg_failed, Toast.LENGTH_SHORT).show();
                     }
                     else {
+                        QueryResultCache.invalidate(mItem.getClass());
                         finish();
                     }
                 }
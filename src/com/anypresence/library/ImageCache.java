@@ -0,0 +1,246 @@
+package com.anypresence.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import android.annotation.SuppressLint;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Holds the caches shared by every BitmapTask in the process.
+ *
+ * On Ice Cream Sandwich and up the caches listen for memory pressure
+ * themselves. When the system asks for memory back, the memory cache and
+ * bitmap pool are shrunk in proportion to how urgent the request is. On
+ * older devices AnyPresenceActivity passes on onLowMemory().
+ * */
+public class ImageCache {
+    private static BitmapMemoryCache MEMORY_CACHE;
+    private static int MEMORY_CACHE_SIZE = -1;
+    private static BitmapMemoryCache.OnEvictListener ON_EVICT_LISTENER;
+    private static BitmapPool BITMAP_POOL;
+    private static int BITMAP_POOL_SIZE = -1;
+    private static BitmapDiskCache DISK_CACHE;
+    private static long DISK_CACHE_SIZE = 10 * 1024 * 1024;
+    private static final String DISK_CACHE_DIR = "ap_images";
+    private static OnTrimListener ON_TRIM_LISTENER;
+    private static boolean IS_LISTENING_FOR_TRIM;
+
+    /**
+     * Returns the memory cache, creating it if needed. Unless overridden with
+     * setMemoryCacheSize(), the cache gets an eighth of the memory class of
+     * the device.
+     * */
+    public static synchronized BitmapMemoryCache getMemoryCache(Context context) {
+        if(MEMORY_CACHE == null) {
+            int size = MEMORY_CACHE_SIZE;
+            if(size <= 0) size = getDefaultMemoryCacheSize(context);
+            MEMORY_CACHE = new BitmapMemoryCache(size);
+            MEMORY_CACHE.setOnEvictListener(ON_EVICT_LISTENER);
+            MEMORY_CACHE.setBitmapPool(getBitmapPool(context));
+            listenForTrim(context);
+        }
+        return MEMORY_CACHE;
+    }
+
+    /**
+     * Returns the pool of reusable bitmaps, creating it if needed. Unless
+     * overridden with setBitmapPoolSize(), the pool gets a sixteenth of the
+     * memory class of the device.
+     * */
+    public static synchronized BitmapPool getBitmapPool(Context context) {
+        if(BITMAP_POOL == null) {
+            int size = BITMAP_POOL_SIZE;
+            if(size <= 0) size = getDefaultMemoryCacheSize(context) / 2;
+            BITMAP_POOL = new BitmapPool(size);
+        }
+        return BITMAP_POOL;
+    }
+
+    /**
+     * Override the number of bytes the bitmap pool may hold.
+     * */
+    public static synchronized void setBitmapPoolSize(int bytes) {
+        BITMAP_POOL_SIZE = bytes;
+        if(BITMAP_POOL != null && bytes > 0) BITMAP_POOL.setMaxSize(bytes);
+    }
+
+    /**
+     * Override the number of bytes the memory cache may hold. If the cache
+     * already exists, the most recently used bitmaps that fit are kept.
+     * */
+    public static synchronized void setMemoryCacheSize(int bytes) {
+        MEMORY_CACHE_SIZE = bytes;
+        if(MEMORY_CACHE != null && bytes > 0 && bytes != MEMORY_CACHE.maxSize()) {
+            BitmapMemoryCache resized = new BitmapMemoryCache(bytes);
+            resized.setOnEvictListener(ON_EVICT_LISTENER);
+            resized.setBitmapPool(BITMAP_POOL);
+            for(Map.Entry<String, Bitmap> entry : MEMORY_CACHE.snapshot().entrySet()) {
+                resized.put(entry.getKey(), entry.getValue());
+            }
+            MEMORY_CACHE = resized;
+        }
+    }
+
+    /**
+     * Set an OnEvictListener on the memory cache.
+     * */
+    public static synchronized void setOnEvictListener(BitmapMemoryCache.OnEvictListener onEvictListener) {
+        ON_EVICT_LISTENER = onEvictListener;
+        if(MEMORY_CACHE != null) MEMORY_CACHE.setOnEvictListener(onEvictListener);
+    }
+
+    /**
+     * Returns the disk cache, opening it if needed. Returns null if the cache
+     * directory can't be used.
+     * */
+    public static synchronized BitmapDiskCache getDiskCache(Context context) {
+        if(DISK_CACHE == null) {
+            File directory = new File(context.getCacheDir(), DISK_CACHE_DIR);
+            if(!directory.exists()) deleteLegacyFiles(context.getCacheDir());
+            try {
+                DISK_CACHE = BitmapDiskCache.open(directory, DISK_CACHE_SIZE);
+            }
+            catch(IOException e) {
+                Log.e(AnyPresenceActivity.TAG, "Error opening disk cache at " + directory, e);
+            }
+        }
+        return DISK_CACHE;
+    }
+
+    /**
+     * Older versions cached images straight in the cache directory, as PNGs
+     * named after the url encoded url. Nothing reads them anymore, so they're
+     * deleted the first time the disk cache is created.
+     * */
+    private static void deleteLegacyFiles(File cacheDir) {
+        File[] files = cacheDir.listFiles();
+        if(files == null) return;
+        for(File file : files) {
+            String name = file.getName();
+            if(file.isFile() && (name.startsWith("http%3A%2F%2F") || name.startsWith("https%3A%2F%2F"))) file.delete();
+        }
+    }
+
+    /**
+     * Override the number of bytes the disk cache may hold. Defaults to 10MB.
+     * */
+    public static synchronized void setDiskCacheSize(long bytes) {
+        DISK_CACHE_SIZE = bytes;
+        if(DISK_CACHE != null) DISK_CACHE.setMaxSize(bytes);
+    }
+
+    /**
+     * Set a listener that's told how much was released whenever the caches
+     * are trimmed.
+     * */
+    public static synchronized void setOnTrimListener(OnTrimListener onTrimListener) {
+        ON_TRIM_LISTENER = onTrimListener;
+    }
+
+    /**
+     * Shrink the memory cache and bitmap pool for a ComponentCallbacks2 trim
+     * level. Called automatically on Ice Cream Sandwich and up.
+     * */
+    public static synchronized void onTrimMemory(int level) {
+        float memoryCacheKept;
+        float bitmapPoolKept;
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // Next in line to be killed. Give everything back.
+            memoryCacheKept = 0;
+            bitmapPoolKept = 0;
+        }
+        else if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            memoryCacheKept = 0.25f;
+            bitmapPoolKept = 0;
+        }
+        else if(level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Nothing is on screen, so nothing will be decoded for a while
+            memoryCacheKept = 0.5f;
+            bitmapPoolKept = 0;
+        }
+        else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            memoryCacheKept = 0.25f;
+            bitmapPoolKept = 0;
+        }
+        else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            memoryCacheKept = 0.5f;
+            bitmapPoolKept = 0.5f;
+        }
+        else {
+            memoryCacheKept = 1;
+            bitmapPoolKept = 0.5f;
+        }
+        trim(level, memoryCacheKept, bitmapPoolKept);
+    }
+
+    /**
+     * Empty the memory cache and bitmap pool. Called automatically on Ice
+     * Cream Sandwich and up.
+     * */
+    public static synchronized void onLowMemory() {
+        trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE, 0, 0);
+    }
+
+    private static void trim(int level, float memoryCacheKept, float bitmapPoolKept) {
+        int memoryCacheReleased = 0;
+        if(MEMORY_CACHE != null) {
+            int before = MEMORY_CACHE.size();
+            if(memoryCacheKept <= 0) MEMORY_CACHE.evictAll();
+            else MEMORY_CACHE.trimToSize((int) (before * memoryCacheKept));
+            memoryCacheReleased = before - MEMORY_CACHE.size();
+        }
+
+        // After the memory cache, since evicted bitmaps land in the pool
+        int bitmapPoolReleased = 0;
+        if(BITMAP_POOL != null) {
+            int before = BITMAP_POOL.size();
+            BITMAP_POOL.trimToSize((int) (before * bitmapPoolKept));
+            bitmapPoolReleased = before - BITMAP_POOL.size();
+        }
+
+        Log.i(AnyPresenceActivity.TAG, "Trimmed images for level " + level + ": released " + memoryCacheReleased + " bytes from memory, "
+                + bitmapPoolReleased + " bytes from the bitmap pool");
+        if(ON_TRIM_LISTENER != null) ON_TRIM_LISTENER.onTrim(level, memoryCacheReleased, bitmapPoolReleased);
+    }
+
+    @SuppressLint("NewApi")
+    private static void listenForTrim(Context context) {
+        if(IS_LISTENING_FOR_TRIM || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) return;
+        IS_LISTENING_FOR_TRIM = true;
+
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                ImageCache.onTrimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                ImageCache.onLowMemory();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {}
+        });
+    }
+
+    private static int getDefaultMemoryCacheSize(Context context) {
+        ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return manager.getMemoryClass() * 1024 * 1024 / 8;
+    }
+
+    /**
+     * A listener for when the caches give memory back to the system.
+     * */
+    public static interface OnTrimListener {
+        public void onTrim(int level, int memoryCacheBytesReleased, int bitmapPoolBytesReleased);
+    }
+}
@@ -0,0 +1,86 @@
+package com.anypresence.library;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+
+/**
+ * The thread pools image work runs on. Network and decode work have their own
+ * bounded pools so slow connections can't starve decodes, and neither
+ * competes with the app's AsyncTasks. Queued jobs run highest priority first,
+ * then newest first, so the rows the user is looking at now load before the
+ * ones they scrolled past.
+ * */
+class ImageExecutor {
+    static final int PRIORITY_LOW = -1;
+    static final int PRIORITY_NORMAL = 0;
+
+    private static final int NETWORK_THREADS = 4;
+    private static final int DECODE_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 2));
+
+    static final ThreadPoolExecutor NETWORK = createExecutor("AnyPresence image network", NETWORK_THREADS);
+    static final ThreadPoolExecutor DECODE = createExecutor("AnyPresence image decode", DECODE_THREADS);
+
+    private static ThreadPoolExecutor createExecutor(final String name, int threads) {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name + " #" + mCount.getAndIncrement());
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * A unit of image work. Jobs must not be changed while queued; remove,
+     * change and requeue them instead.
+     * */
+    abstract static class Job implements Runnable, Comparable<Job> {
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+
+        private int mPriority;
+        private long mSequence = SEQUENCE.incrementAndGet();
+        private final long mQueuedAt = ImageMetrics.start();
+
+        Job(int priority) {
+            mPriority = priority;
+        }
+
+        /**
+         * Returns when the job was created, for ImageMetrics.time().
+         * */
+        long getQueuedAt() {
+            return mQueuedAt;
+        }
+
+        /**
+         * Make this the newest job of the priority.
+         * */
+        void renew(int priority) {
+            mPriority = priority;
+            mSequence = SEQUENCE.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(Job another) {
+            if(mPriority != another.mPriority) return mPriority > another.mPriority ? -1 : 1;
+            if(mSequence != another.mSequence) return mSequence > another.mSequence ? -1 : 1;
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.anypresence.library;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Downloads images. Response bodies are written to the disk cache exactly as
+ * they were received, so nothing is ever decoded just to be re-encoded.
+ *
+ * The response's ETag, Last-Modified and freshness lifetime are kept as the
+ * disk entry's metadata. Once an entry goes stale it's revalidated with a
+ * conditional request, and a 304 only refreshes the metadata. Responses
+ * marked no-store are never written to disk.
+ * */
+public class ImageFetcher {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static int CONNECT_TIMEOUT = 15 * 1000;
+    private static int READ_TIMEOUT = 20 * 1000;
+    private static long DEFAULT_FRESHNESS = 24 * 60 * 60 * 1000;
+
+    // How often a download waiting on another checks whether it was cancelled
+    private static final long WAIT_INTERVAL = 100;
+    private static final Map<String, Download> DOWNLOADS = new HashMap<String, Download>();
+
+    /**
+     * Set how long to wait for a connection, in milliseconds. 0 waits
+     * forever. Defaults to 15 seconds.
+     * */
+    public static void setConnectTimeout(int timeoutMillis) {
+        CONNECT_TIMEOUT = timeoutMillis;
+    }
+
+    public static int getConnectTimeout() {
+        return CONNECT_TIMEOUT;
+    }
+
+    /**
+     * Set how long to wait for data once connected, in milliseconds. 0 waits
+     * forever. Defaults to 20 seconds.
+     * */
+    public static void setReadTimeout(int timeoutMillis) {
+        READ_TIMEOUT = timeoutMillis;
+    }
+
+    public static int getReadTimeout() {
+        return READ_TIMEOUT;
+    }
+
+    /**
+     * Set how long, in milliseconds, a cached image stays fresh when the
+     * server doesn't send Cache-Control or Expires. Defaults to 24 hours.
+     * */
+    public static void setDefaultFreshness(long freshnessMillis) {
+        DEFAULT_FRESHNESS = freshnessMillis;
+    }
+
+    public static long getDefaultFreshness() {
+        return DEFAULT_FRESHNESS;
+    }
+
+    /**
+     * Returns true if the url is in the disk cache and can be used without
+     * checking with the server.
+     * */
+    public static boolean isFresh(BitmapDiskCache diskCache, String url) {
+        String[] metadata = parseMetadata(diskCache.getMetadata(url));
+        if(metadata == null) return false;
+        try {
+            return System.currentTimeMillis() < Long.parseLong(metadata[0]);
+        }
+        catch(NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Streams the response body for the url into the disk cache and returns
+     * the cached file. If the url is already cached, the server is asked
+     * whether it changed and the body is only downloaded if it did. If
+     * another download of the same url is already running, waits for it and
+     * returns its file instead of downloading again. Returns null if the
+     * response may not be stored; use fetchToMemory() for those.
+     * */
+    public static File fetchToDisk(BitmapDiskCache diskCache, String url) throws IOException {
+        return fetchToDisk(diskCache, url, new CancelHandle(), null);
+    }
+
+    /**
+     * Like fetchToDisk(BitmapDiskCache, String), but stops as soon as the
+     * handle is cancelled. Nothing is written to the cache in that case. If
+     * the response may not be stored, its body is written to noStoreBody
+     * instead, if passed, and null is returned.
+     * */
+    static File fetchToDisk(BitmapDiskCache diskCache, String url, CancelHandle handle, OutputStream noStoreBody) throws IOException {
+        // Requests for the same url at different sizes, and prefetches, all
+        // share one download and decode from the file it leaves
+        Download download;
+        synchronized(DOWNLOADS) {
+            while(true) {
+                Download other = DOWNLOADS.get(url);
+                if(other == null) break;
+                while(!other.mIsDone) {
+                    handle.throwIfCancelled();
+                    try {
+                        DOWNLOADS.wait(WAIT_INTERVAL);
+                    }
+                    catch(InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted waiting for " + url);
+                    }
+                }
+                File cache = other.mSucceeded ? diskCache.get(url) : null;
+                if(cache != null) return cache;
+                // The other download failed or was cancelled. Try again here.
+            }
+            download = new Download();
+            DOWNLOADS.put(url, download);
+        }
+
+        File cache = null;
+        try {
+            cache = download(diskCache, url, handle, noStoreBody);
+            return cache;
+        }
+        finally {
+            synchronized(DOWNLOADS) {
+                DOWNLOADS.remove(url);
+                download.mIsDone = true;
+                download.mSucceeded = cache != null;
+                DOWNLOADS.notifyAll();
+            }
+        }
+    }
+
+    private static File download(BitmapDiskCache diskCache, String url, CancelHandle handle, OutputStream noStoreBody) throws IOException {
+        BitmapDiskCache.Editor editor = diskCache.edit(url);
+        if(editor == null) return null;
+
+        boolean success = false;
+        boolean isNoStore = false;
+        long start = ImageMetrics.start();
+        try {
+            String[] cached = diskCache.get(url) == null ? null : parseMetadata(diskCache.getMetadata(url));
+            URLConnection conn = openConnection(url, handle, cached);
+            if(cached != null && conn instanceof HttpURLConnection
+                    && ((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // Still good. Keep the old validators unless new ones were sent.
+                ImageMetrics.count(ImageMetrics.NETWORK_NOT_MODIFIED);
+                String etag = conn.getHeaderField("ETag");
+                String lastModified = conn.getHeaderField("Last-Modified");
+                editor.setMetadata(createMetadata(conn, etag != null ? etag : cached[1], lastModified != null ? lastModified : cached[2]));
+            }
+            else if(isNoStore(conn)) {
+                isNoStore = true;
+                InputStream is = conn.getInputStream();
+                try {
+                    if(noStoreBody != null) copy(is, noStoreBody, handle);
+                }
+                finally {
+                    is.close();
+                }
+                ImageMetrics.count(ImageMetrics.NETWORK_FETCH);
+            }
+            else {
+                InputStream is = conn.getInputStream();
+                try {
+                    OutputStream os = editor.newOutputStream();
+                    copy(is, os, handle);
+                    os.close();
+                }
+                finally {
+                    is.close();
+                }
+                editor.setMetadata(createMetadata(conn, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified")));
+                ImageMetrics.count(ImageMetrics.NETWORK_FETCH);
+            }
+            success = !isNoStore && !handle.isCancelled();
+        }
+        finally {
+            handle.setConnection(null);
+            if(success) editor.commit();
+            else editor.abort();
+            ImageMetrics.time(ImageMetrics.NETWORK_TIME, start);
+        }
+
+        // Don't keep serving an older copy the server no longer lets us store
+        if(isNoStore) {
+            diskCache.remove(url);
+            return null;
+        }
+        return diskCache.get(url);
+    }
+
+    /**
+     * Downloads the response body for the url into memory. Used when there
+     * is no disk cache to stream into.
+     * */
+    public static byte[] fetchToMemory(String url) throws IOException {
+        return fetchToMemory(url, new CancelHandle());
+    }
+
+    /**
+     * Like fetchToMemory(String), but stops as soon as the handle is
+     * cancelled.
+     * */
+    static byte[] fetchToMemory(String url, CancelHandle handle) throws IOException {
+        long start = ImageMetrics.start();
+        try {
+            InputStream is = openConnection(url, handle, null).getInputStream();
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                copy(is, bytes, handle);
+                ImageMetrics.count(ImageMetrics.NETWORK_FETCH);
+                return bytes.toByteArray();
+            }
+            finally {
+                is.close();
+            }
+        }
+        finally {
+            handle.setConnection(null);
+            ImageMetrics.time(ImageMetrics.NETWORK_TIME, start);
+        }
+    }
+
+    /**
+     * Opens the url. If cached metadata is passed, the request is made
+     * conditional on the cached copy's validators.
+     * */
+    private static URLConnection openConnection(String url, CancelHandle handle, String[] cached) throws IOException {
+        handle.throwIfCancelled();
+        URLConnection conn = new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        if(cached != null) {
+            if(cached[1] != null) conn.setRequestProperty("If-None-Match", cached[1]);
+            if(cached[2] != null) conn.setRequestProperty("If-Modified-Since", cached[2]);
+        }
+        if(conn instanceof HttpURLConnection) handle.setConnection((HttpURLConnection) conn);
+        conn.connect();
+        return conn;
+    }
+
+    private static boolean isNoStore(URLConnection conn) {
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        return cacheControl != null && cacheControl.toLowerCase(Locale.US).contains("no-store");
+    }
+
+    /**
+     * Builds the metadata stored with a disk entry:
+     * "expiry,etag,lastModified", each url encoded and possibly empty.
+     * must-revalidate doesn't shorten the freshness lifetime; it only says
+     * what to do once stale, which is revalidate anyway.
+     * */
+    static String createMetadata(URLConnection conn, String etag, String lastModified) {
+        long now = System.currentTimeMillis();
+        long expiry = now + DEFAULT_FRESHNESS;
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if(cacheControl != null && cacheControl.toLowerCase(Locale.US).matches(".*(no-cache|no-store).*")) {
+            expiry = now;
+        }
+        else if(cacheControl != null && cacheControl.toLowerCase(Locale.US).contains("max-age=")) {
+            expiry = now + parseMaxAge(cacheControl.toLowerCase(Locale.US)) * 1000;
+        }
+        else if(conn.getExpiration() > 0) {
+            expiry = conn.getExpiration();
+        }
+        return expiry + "," + encode(etag) + "," + encode(lastModified);
+    }
+
+    /**
+     * Returns {expiry, etag, lastModified} with missing validators as null,
+     * or null if the metadata isn't ours.
+     * */
+    private static String[] parseMetadata(String metadata) {
+        if(metadata == null) return null;
+        String[] parts = metadata.split(",", -1);
+        if(parts.length != 3) return null;
+        return new String[] { parts[0], decode(parts[1]), decode(parts[2]) };
+    }
+
+    private static long parseMaxAge(String cacheControl) {
+        int start = cacheControl.indexOf("max-age=") + "max-age=".length();
+        int end = start;
+        while(end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(cacheControl.substring(start, end));
+        }
+        catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String encode(String value) {
+        if(value == null) return "";
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        if("".equals(value)) return null;
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void copy(InputStream is, OutputStream os, CancelHandle handle) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while((read = is.read(buffer)) != -1) {
+            handle.throwIfCancelled();
+            os.write(buffer, 0, read);
+            ImageMetrics.count(ImageMetrics.BYTES_DOWNLOADED, read);
+        }
+        handle.throwIfCancelled();
+    }
+
+    /**
+     * A download in progress, for others of the same url to wait on.
+     * */
+    private static class Download {
+        private boolean mIsDone;
+        private boolean mSucceeded;
+    }
+}
@@ -0,0 +1,342 @@
+package com.anypresence.library;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Counters and latency histograms for the image pipeline: how often each
+ * cache tier hits, how long decodes, downloads and queueing take, and how
+ * many bytes move. Disabled by default. While disabled, recording is a
+ * single check of a flag.
+ *
+ * Read the numbers with snapshot(), or log them with dump().
+ * */
+public class ImageMetrics {
+    static final int MEMORY_HIT = 0;
+    static final int MEMORY_MISS = 1;
+    static final int DISK_HIT = 2;
+    static final int DISK_MISS = 3;
+    static final int DISK_STALE = 4;
+    static final int NETWORK_FETCH = 5;
+    static final int NETWORK_NOT_MODIFIED = 6;
+    static final int NETWORK_FAILURE = 7;
+    static final int BYTES_DOWNLOADED = 8;
+    static final int CANCELLATION = 9;
+    static final int DECODE_FAILURE = 10;
+    static final int STALE_RESULT_SUPPRESSED = 11;
+    static final int REDUNDANT_RELOAD_SKIPPED = 12;
+    private static final int COUNTER_COUNT = 13;
+
+    static final int DECODE_TIME = 0;
+    static final int NETWORK_TIME = 1;
+    static final int QUEUE_WAIT = 2;
+    private static final int HISTOGRAM_COUNT = 3;
+
+    private static volatile boolean ENABLED = false;
+    private static final AtomicLongArray COUNTERS = new AtomicLongArray(COUNTER_COUNT);
+    private static final Histogram[] HISTOGRAMS = new Histogram[HISTOGRAM_COUNT];
+    static {
+        for(int i = 0; i < HISTOGRAM_COUNT; i++) {
+            HISTOGRAMS[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Start or stop recording. Numbers recorded so far are kept.
+     * */
+    public static void setEnabled(boolean enabled) {
+        ENABLED = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Clear every counter and histogram.
+     * */
+    public static void reset() {
+        for(int i = 0; i < COUNTER_COUNT; i++) {
+            COUNTERS.set(i, 0);
+        }
+        for(Histogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Returns a copy of the current numbers. The context is used to read the
+     * disk cache size, and may be null to skip it.
+     * */
+    public static Snapshot snapshot(Context context) {
+        long diskBytes = -1;
+        if(context != null) {
+            BitmapDiskCache diskCache = ImageCache.getDiskCache(context);
+            if(diskCache != null) diskBytes = diskCache.size();
+        }
+        return new Snapshot(diskBytes);
+    }
+
+    /**
+     * Log the current numbers.
+     * */
+    public static void dump(Context context) {
+        Log.i(AnyPresenceActivity.TAG, snapshot(context).toString());
+    }
+
+    static void count(int counter) {
+        if(ENABLED) COUNTERS.incrementAndGet(counter);
+    }
+
+    static void count(int counter, long amount) {
+        if(ENABLED) COUNTERS.addAndGet(counter, amount);
+    }
+
+    /**
+     * Returns a start time to pass to time(), or 0 if disabled.
+     * */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the time since start() in the histogram.
+     * */
+    static void time(int histogram, long startNanos) {
+        if(ENABLED && startNanos != 0) HISTOGRAMS[histogram].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Latencies bucketed by powers of two milliseconds: under 1ms, under
+     * 2ms, under 4ms and so on up to 16 seconds, then everything slower.
+     * */
+    public static class Histogram {
+        private static final int BUCKET_COUNT = 16;
+
+        private final long[] mBuckets = new long[BUCKET_COUNT];
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        private Histogram() {}
+
+        private synchronized void record(long nanos) {
+            long millis = nanos / 1000000;
+            int bucket = 0;
+            while(bucket < BUCKET_COUNT - 1 && millis >= (1L << bucket)) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        private synchronized void reset() {
+            for(int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets[i] = 0;
+            }
+            mCount = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+        }
+
+        private synchronized Histogram copy() {
+            Histogram copy = new Histogram();
+            System.arraycopy(mBuckets, 0, copy.mBuckets, 0, BUCKET_COUNT);
+            copy.mCount = mCount;
+            copy.mTotalNanos = mTotalNanos;
+            copy.mMaxNanos = mMaxNanos;
+            return copy;
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized double getMeanMillis() {
+            return mCount == 0 ? 0 : mTotalNanos / 1000000.0 / mCount;
+        }
+
+        public synchronized double getMaxMillis() {
+            return mMaxNanos / 1000000.0;
+        }
+
+        /**
+         * Returns the upper bound, in milliseconds, of the bucket holding the
+         * percentile (0 to 100). Anything past the last bucket reports the
+         * max instead.
+         * */
+        public synchronized double getPercentileMillis(double percentile) {
+            if(mCount == 0) return 0;
+            long rank = (long) Math.ceil(mCount * percentile / 100.0);
+            long seen = 0;
+            for(int i = 0; i < BUCKET_COUNT - 1; i++) {
+                seen += mBuckets[i];
+                if(seen >= rank) return Math.min(1L << i, getMaxMillis());
+            }
+            return getMaxMillis();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("n=%d mean=%.1fms p50=%.0fms p95=%.0fms max=%.1fms", mCount, getMeanMillis(), getPercentileMillis(50),
+                    getPercentileMillis(95), getMaxMillis());
+        }
+    }
+
+    /**
+     * The numbers at one point in time.
+     * */
+    public static class Snapshot {
+        private final long[] mCounters = new long[COUNTER_COUNT];
+        private final Histogram[] mHistograms = new Histogram[HISTOGRAM_COUNT];
+        private final long mDiskBytes;
+
+        private Snapshot(long diskBytes) {
+            for(int i = 0; i < COUNTER_COUNT; i++) {
+                mCounters[i] = COUNTERS.get(i);
+            }
+            for(int i = 0; i < HISTOGRAM_COUNT; i++) {
+                mHistograms[i] = HISTOGRAMS[i].copy();
+            }
+            mDiskBytes = diskBytes;
+        }
+
+        public long getMemoryHitCount() {
+            return mCounters[MEMORY_HIT];
+        }
+
+        public long getMemoryMissCount() {
+            return mCounters[MEMORY_MISS];
+        }
+
+        /**
+         * Fresh disk entries that were decoded without touching the network.
+         * */
+        public long getDiskHitCount() {
+            return mCounters[DISK_HIT];
+        }
+
+        public long getDiskMissCount() {
+            return mCounters[DISK_MISS];
+        }
+
+        /**
+         * Disk entries that had to be revalidated with the server.
+         * */
+        public long getDiskStaleCount() {
+            return mCounters[DISK_STALE];
+        }
+
+        /**
+         * Responses that downloaded a body.
+         * */
+        public long getNetworkFetchCount() {
+            return mCounters[NETWORK_FETCH];
+        }
+
+        /**
+         * Revalidations answered with 304 Not Modified.
+         * */
+        public long getNetworkNotModifiedCount() {
+            return mCounters[NETWORK_NOT_MODIFIED];
+        }
+
+        public long getNetworkFailureCount() {
+            return mCounters[NETWORK_FAILURE];
+        }
+
+        public long getBytesDownloaded() {
+            return mCounters[BYTES_DOWNLOADED];
+        }
+
+        /**
+         * Returns the size of the disk cache, or -1 if it wasn't read.
+         * */
+        public long getDiskBytes() {
+            return mDiskBytes;
+        }
+
+        /**
+         * Requests stopped because no view wanted them anymore.
+         * */
+        public long getCancellationCount() {
+            return mCounters[CANCELLATION];
+        }
+
+        /**
+         * Downloaded or cached bytes that didn't decode as an image.
+         * */
+        public long getDecodeFailureCount() {
+            return mCounters[DECODE_FAILURE];
+        }
+
+        /**
+         * Results that arrived after their view was rebound, and so weren't
+         * shown.
+         * */
+        public long getStaleResultsSuppressedCount() {
+            return mCounters[STALE_RESULT_SUPPRESSED];
+        }
+
+        /**
+         * Binds that kept the load already in flight for the view instead of
+         * starting the same one again.
+         * */
+        public long getRedundantReloadsSkippedCount() {
+            return mCounters[REDUNDANT_RELOAD_SKIPPED];
+        }
+
+        public Histogram getDecodeTime() {
+            return mHistograms[DECODE_TIME];
+        }
+
+        public Histogram getNetworkTime() {
+            return mHistograms[NETWORK_TIME];
+        }
+
+        /**
+         * Time jobs spent queued before a thread picked them up.
+         * */
+        public Histogram getQueueWait() {
+            return mHistograms[QUEUE_WAIT];
+        }
+
+        /**
+         * Returns hits / lookups for the memory cache, or 0 if there were no
+         * lookups.
+         * */
+        public double getMemoryHitRate() {
+            long lookups = getMemoryHitCount() + getMemoryMissCount();
+            return lookups == 0 ? 0 : (double) getMemoryHitCount() / lookups;
+        }
+
+        /**
+         * Returns hits / lookups for the disk cache, or 0 if there were no
+         * lookups.
+         * */
+        public double getDiskHitRate() {
+            long lookups = getDiskHitCount() + getDiskMissCount() + getDiskStaleCount();
+            return lookups == 0 ? 0 : (double) getDiskHitCount() / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return "Image metrics:"
+                    + "\n memory: " + getMemoryHitCount() + " hits, " + getMemoryMissCount() + " misses"
+                    + "\n disk: " + getDiskHitCount() + " hits, " + getDiskMissCount() + " misses, " + getDiskStaleCount() + " stale, "
+                    + getDiskBytes() + " bytes"
+                    + "\n network: " + getNetworkFetchCount() + " fetches, " + getNetworkNotModifiedCount() + " not modified, "
+                    + getNetworkFailureCount() + " failures, " + getBytesDownloaded() + " bytes"
+                    + "\n cancellations: " + getCancellationCount() + ", decode failures: " + getDecodeFailureCount()
+                    + "\n stale results suppressed: " + getStaleResultsSuppressedCount() + ", redundant reloads skipped: "
+                    + getRedundantReloadsSkippedCount()
+                    + "\n decode time: " + getDecodeTime()
+                    + "\n network time: " + getNetworkTime()
+                    + "\n queue wait: " + getQueueWait();
+        }
+    }
+}
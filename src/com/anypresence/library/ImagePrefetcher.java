@@ -0,0 +1,196 @@
+package com.anypresence.library;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/**
+ * Warms the image caches before the images are shown, e.g. from an
+ * OnLoadListener for the rows of the next screen. Prefetches run at low
+ * priority, behind anything a view is waiting on, and only a few run at
+ * once.
+ *
+ * Should only be used from the main thread.
+ * */
+public class ImagePrefetcher {
+    private static final LinkedList<Prefetch> PENDING = new LinkedList<Prefetch>();
+    private static int MAX_CONCURRENT_PREFETCHES = 2;
+    private static int ACTIVE_COUNT;
+
+    /**
+     * Set how many prefetches may download at once, across every batch.
+     * Defaults to 2.
+     * */
+    public static void setMaxConcurrentPrefetches(int maxConcurrentPrefetches) {
+        MAX_CONCURRENT_PREFETCHES = Math.max(1, maxConcurrentPrefetches);
+        startPending();
+    }
+
+    public static int getMaxConcurrentPrefetches() {
+        return MAX_CONCURRENT_PREFETCHES;
+    }
+
+    /**
+     * Download the urls into the disk cache.
+     * */
+    public static Batch prefetch(Context context, Collection<String> urls) {
+        return prefetch(context, urls, 0, 0);
+    }
+
+    /**
+     * Download the urls into the disk cache and decode them into the memory
+     * cache at roughly width x height. Use the same size passed to
+     * AnyPresenceAdapter.loadImage() or BitmapTask, or the memory cache will
+     * miss. Pass 0 for both to skip the memory cache.
+     * */
+    public static Batch prefetch(Context context, Collection<String> urls, int width, int height) {
+        Batch batch = new Batch();
+        for(String url : urls) {
+            if(url == null || "".equals(url)) continue;
+            Prefetch prefetch = new Prefetch(context.getApplicationContext(), batch, url, width, height);
+            batch.mPrefetches.add(prefetch);
+            PENDING.add(prefetch);
+        }
+        startPending();
+        return batch;
+    }
+
+    /**
+     * Download the images of the items into the disk cache.
+     * */
+    public static <T> Batch prefetch(Context context, Collection<T> items, UrlExtractor<T> extractor) {
+        return prefetch(context, items, extractor, 0, 0);
+    }
+
+    /**
+     * Download the images of the items into the disk cache and decode them
+     * into the memory cache at roughly width x height.
+     * */
+    public static <T> Batch prefetch(Context context, Collection<T> items, UrlExtractor<T> extractor, int width, int height) {
+        List<String> urls = new ArrayList<String>();
+        for(T item : items) {
+            List<String> itemUrls = extractor.getUrls(item);
+            if(itemUrls != null) urls.addAll(itemUrls);
+        }
+        return prefetch(context, urls, width, height);
+    }
+
+    private static void startPending() {
+        while(ACTIVE_COUNT < MAX_CONCURRENT_PREFETCHES && !PENDING.isEmpty()) {
+            PENDING.removeFirst().start();
+        }
+    }
+
+    /**
+     * Returns the urls of the images shown for an item.
+     * */
+    public static interface UrlExtractor<T> {
+        public List<String> getUrls(T item);
+    }
+
+    /**
+     * A group of prefetches that can be cancelled together.
+     * */
+    public static class Batch {
+        private final List<Prefetch> mPrefetches = new ArrayList<Prefetch>();
+        private int mCompletedCount;
+        private boolean mIsCancelled;
+
+        private Batch() {}
+
+        /**
+         * Stop the prefetches that haven't finished. Downloads a view is
+         * also waiting on keep going.
+         * */
+        public void cancel() {
+            if(mIsCancelled) return;
+            mIsCancelled = true;
+            for(Prefetch prefetch : mPrefetches) {
+                prefetch.cancel();
+            }
+            startPending();
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        /**
+         * Returns true once every prefetch has finished, successfully or not.
+         * */
+        public boolean isDone() {
+            return mCompletedCount == mPrefetches.size();
+        }
+
+        /**
+         * Returns the number of urls in the batch.
+         * */
+        public int getCount() {
+            return mPrefetches.size();
+        }
+
+        /**
+         * Returns the number of urls that have been prefetched so far.
+         * */
+        public int getCompletedCount() {
+            return mCompletedCount;
+        }
+    }
+
+    private static class Prefetch implements ImageRequest.Listener {
+        private final Context mContext;
+        private final Batch mBatch;
+        private final String mURL;
+        private final int mWidth;
+        private final int mHeight;
+        private ImageRequestRegistry.Subscription mSubscription;
+        private boolean mIsFinished;
+
+        private Prefetch(Context context, Batch batch, String url, int width, int height) {
+            mContext = context;
+            mBatch = batch;
+            mURL = url;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        private void start() {
+            boolean decode = mWidth > 0 || mHeight > 0;
+            if(decode && ImageCache.getMemoryCache(mContext).get(BitmapTask.createCacheKey(mURL, mWidth, mHeight, false, null)) != null) {
+                // Already warm
+                mIsFinished = true;
+                mBatch.mCompletedCount++;
+                return;
+            }
+
+            ACTIVE_COUNT++;
+            if(decode) mSubscription = ImageRequestRegistry.prefetch(mContext, mURL, mWidth, mHeight, this);
+            else mSubscription = ImageRequestRegistry.prefetch(mContext, mURL, this);
+        }
+
+        @Override
+        public void onComplete(Bitmap result) {
+            if(mIsFinished) return;
+            mIsFinished = true;
+            mBatch.mCompletedCount++;
+            ACTIVE_COUNT--;
+            startPending();
+        }
+
+        private void cancel() {
+            if(mIsFinished) return;
+            mIsFinished = true;
+            if(mSubscription != null) {
+                mSubscription.cancel();
+                ACTIVE_COUNT--;
+            }
+            else {
+                PENDING.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.anypresence.library;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * One fetch and decode of an image, shared by every BitmapTask that wants the
+ * same url at the same size. Created and tracked by ImageRequestRegistry.
+ * Prefetches only fill the disk cache and skip the decode.
+ *
+ * The disk lookup and decodes run on ImageExecutor.DECODE, the download on
+ * ImageExecutor.NETWORK. The result is delivered on the main thread.
+ * */
+class ImageRequest {
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private final Context mContext;
+    private final String mKey;
+    private final String mURL;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mAllowRgb565;
+    private final Transformation mTransformation;
+    private int mPriority;
+    private final boolean mDecode;
+    private final List<Object> mSubscribers = new ArrayList<Object>();
+    private final CancelHandle mCancelHandle = new CancelHandle();
+    private volatile boolean mIsCancelled;
+    private ImageExecutor.Job mQueuedJob;
+    private ThreadPoolExecutor mQueuedExecutor;
+
+    ImageRequest(Context context, String key, String url, int width, int height, boolean allowRgb565, Transformation transformation, int priority) {
+        mContext = context.getApplicationContext();
+        mKey = key;
+        mURL = url;
+        mWidth = width;
+        mHeight = height;
+        mAllowRgb565 = allowRgb565;
+        mTransformation = transformation;
+        mPriority = priority;
+        mDecode = true;
+    }
+
+    /**
+     * A request that only downloads the url into the disk cache.
+     * */
+    ImageRequest(Context context, String key, String url, int priority) {
+        mContext = context.getApplicationContext();
+        mKey = key;
+        mURL = url;
+        mWidth = 0;
+        mHeight = 0;
+        mAllowRgb565 = false;
+        mTransformation = null;
+        mPriority = priority;
+        mDecode = false;
+    }
+
+    String getKey() {
+        return mKey;
+    }
+
+    /**
+     * BitmapTasks and Listeners waiting on the result.
+     * */
+    List<Object> getSubscribers() {
+        return mSubscribers;
+    }
+
+    boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    /**
+     * Queue the request, starting with a disk lookup.
+     * */
+    void start() {
+        schedule(ImageExecutor.DECODE, new Runnable() {
+            @Override
+            public void run() {
+                loadFromDisk();
+            }
+        });
+    }
+
+    /**
+     * Move the request to the front of its queue, if it's still waiting,
+     * raising it to at least the priority. Called when another view asks for
+     * the same image.
+     * */
+    synchronized void promote(int priority) {
+        mPriority = Math.max(mPriority, priority);
+        if(mQueuedJob != null && mQueuedExecutor.remove(mQueuedJob)) {
+            mQueuedJob.renew(mPriority);
+            mQueuedExecutor.execute(mQueuedJob);
+        }
+    }
+
+    /**
+     * Stop the request. Queued work is dropped, an open connection is
+     * disconnected and a running decode is asked to stop. Nobody is called
+     * back and nothing is cached; a bitmap decoded anyway goes back to the
+     * pool.
+     * */
+    void cancel() {
+        if(!mIsCancelled) ImageMetrics.count(ImageMetrics.CANCELLATION);
+        mIsCancelled = true;
+        mCancelHandle.cancel();
+        synchronized(this) {
+            if(mQueuedJob != null) mQueuedExecutor.remove(mQueuedJob);
+            mQueuedJob = null;
+        }
+    }
+
+    /**
+     * Queue the next step of the request. Only one step is ever queued.
+     * */
+    private synchronized void schedule(ThreadPoolExecutor executor, final Runnable step) {
+        if(mIsCancelled) return;
+        ImageExecutor.Job job = new ImageExecutor.Job(mPriority) {
+            @Override
+            public void run() {
+                ImageMetrics.time(ImageMetrics.QUEUE_WAIT, getQueuedAt());
+                synchronized(ImageRequest.this) {
+                    if(mQueuedJob == this) mQueuedJob = null;
+                }
+                if(!mIsCancelled) step.run();
+            }
+        };
+        mQueuedJob = job;
+        mQueuedExecutor = executor;
+        executor.execute(job);
+    }
+
+    private void loadFromDisk() {
+        if(!mDecode) {
+            BitmapDiskCache diskCache = ImageCache.getDiskCache(mContext);
+            if(diskCache == null || (diskCache.get(mURL) != null && ImageFetcher.isFresh(diskCache, mURL))) {
+                finish(null);
+                return;
+            }
+        }
+
+        // Check disk before going to the network
+        Bitmap bitmap = loadCache(mURL);
+        if(bitmap != null || mURL == null || "".equals(mURL)) {
+            finish(bitmap);
+            return;
+        }
+
+        schedule(ImageExecutor.NETWORK, new Runnable() {
+            @Override
+            public void run() {
+                loadFromNetwork();
+            }
+        });
+    }
+
+    private void loadFromNetwork() {
+        final BitmapDiskCache diskCache = ImageCache.getDiskCache(mContext);
+        try {
+            // Stream the original bytes to disk, then decode from there. A
+            // stale copy is only downloaded again if it changed.
+            ByteArrayOutputStream noStoreBody = new ByteArrayOutputStream();
+            final File cache = diskCache == null ? null : ImageFetcher.fetchToDisk(diskCache, mURL, mCancelHandle, mDecode ? noStoreBody : null);
+            if(!mDecode) {
+                finish(null);
+            }
+            else if(cache != null) {
+                schedule(ImageExecutor.DECODE, new Runnable() {
+                    @Override
+                    public void run() {
+                        Bitmap bitmap = BitmapDecoder.decodeFile(cache.toString(), mWidth, mHeight, mAllowRgb565, ImageCache.getBitmapPool(mContext),
+                                mCancelHandle);
+
+                        // Not an image, even decoded without a pooled bitmap.
+                        // Don't keep it around.
+                        if(bitmap == null && !mIsCancelled) {
+                            ImageMetrics.count(ImageMetrics.DECODE_FAILURE);
+                            diskCache.remove(mURL);
+                        }
+                        finish(bitmap);
+                    }
+                });
+            }
+            else {
+                // A no-store response was already read, just not cached
+                final byte[] bytes = noStoreBody.size() > 0 ? noStoreBody.toByteArray() : ImageFetcher.fetchToMemory(mURL, mCancelHandle);
+                schedule(ImageExecutor.DECODE, new Runnable() {
+                    @Override
+                    public void run() {
+                        finish(BitmapDecoder.decodeByteArray(bytes, mWidth, mHeight, mAllowRgb565, ImageCache.getBitmapPool(mContext), mCancelHandle));
+                    }
+                });
+            }
+        }
+        catch(IOException e) {
+            if(mIsCancelled) return;
+            ImageMetrics.count(ImageMetrics.NETWORK_FAILURE);
+            Log.e(AnyPresenceActivity.TAG, "Error getting bitmap from url " + mURL, e);
+
+            // Couldn't revalidate, but an old image beats none
+            final File stale = diskCache == null || !mDecode ? null : diskCache.get(mURL);
+            if(stale != null) {
+                schedule(ImageExecutor.DECODE, new Runnable() {
+                    @Override
+                    public void run() {
+                        finish(BitmapDecoder.decodeFile(stale.toString(), mWidth, mHeight, mAllowRgb565, ImageCache.getBitmapPool(mContext), mCancelHandle));
+                    }
+                });
+            }
+            else {
+                finish(null);
+            }
+        }
+    }
+
+    /**
+     * Load bitmap from the disk cache. Stale copies are left for
+     * loadFromNetwork() to revalidate.
+     * */
+    private Bitmap loadCache(String url) {
+        if(mDecode && url != null && !"".equals(url)) {
+            BitmapDiskCache diskCache = ImageCache.getDiskCache(mContext);
+            File cache = diskCache == null ? null : diskCache.get(url);
+
+            if(cache == null) {
+                ImageMetrics.count(ImageMetrics.DISK_MISS);
+            }
+            else if(!ImageFetcher.isFresh(diskCache, url)) {
+                ImageMetrics.count(ImageMetrics.DISK_STALE);
+            }
+            else {
+                ImageMetrics.count(ImageMetrics.DISK_HIT);
+                return BitmapDecoder.decodeFile(cache.toString(), mWidth, mHeight, mAllowRgb565, ImageCache.getBitmapPool(mContext), mCancelHandle);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called on the decode thread, or with null from anywhere.
+     * */
+    private void finish(Bitmap decoded) {
+        final Bitmap bitmap = decoded == null ? null : transform(decoded);
+
+        // See cancel()
+        if(mIsCancelled) {
+            if(bitmap != null) ImageCache.getBitmapPool(mContext).put(bitmap);
+            return;
+        }
+
+        if(bitmap != null) {
+            // Hold on to the bitmap until it's been delivered, so an eviction
+            // can't hand it to the pool in the meantime
+            ImageCache.getBitmapPool(mContext).setDisplayed(this, bitmap);
+
+            if(Debug.isEnabled()) Log.d(AnyPresenceActivity.TAG, "Saving bitmap to memory.");
+            ImageCache.getMemoryCache(mContext).put(mKey, bitmap);
+        }
+
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                if(!mIsCancelled) ImageRequestRegistry.complete(ImageRequest.this, bitmap);
+                if(bitmap != null) ImageCache.getBitmapPool(mContext).setDisplayed(ImageRequest.this, null);
+            }
+        });
+    }
+
+    private Bitmap transform(Bitmap decoded) {
+        if(mTransformation == null) return decoded;
+
+        Bitmap transformed = mTransformation.transform(decoded);
+        if(transformed != decoded) ImageCache.getBitmapPool(mContext).put(decoded);
+        return transformed;
+    }
+
+    /**
+     * Told when the request finishes, for subscribers that aren't
+     * BitmapTasks.
+     * */
+    static interface Listener {
+        public void onComplete(Bitmap result);
+    }
+}
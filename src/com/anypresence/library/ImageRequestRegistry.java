@@ -0,0 +1,141 @@
+package com.anypresence.library;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/**
+ * Tracks image loads that are in flight. Concurrent BitmapTasks for the same
+ * url and size attach to a single fetch and decode instead of each opening a
+ * connection. The fetch is only cancelled once every task has detached.
+ * Requests for the same url at different sizes, and prefetches, still share
+ * one download, which ImageFetcher coalesces by url.
+ *
+ * Should only be used from the main thread.
+ * */
+public class ImageRequestRegistry {
+    private static final Map<String, ImageRequest> IN_FLIGHT = new HashMap<String, ImageRequest>();
+
+    /**
+     * Attach the task to the in-flight request for its cache key, starting
+     * one if needed. The task is handed the result through onPostExecute().
+     * */
+    static Subscription subscribe(BitmapTask task) {
+        return subscribe(task, task);
+    }
+
+    /**
+     * Like subscribe(BitmapTask), but the result is handed to the subscriber,
+     * another BitmapTask or a Listener, instead of the task.
+     * */
+    static Subscription subscribe(BitmapTask task, Object subscriber) {
+        String key = task.getCacheKey();
+        ImageRequest request = IN_FLIGHT.get(key);
+        boolean isNew = request == null;
+        if(isNew) {
+            request = new ImageRequest(task.getContext(), key, task.getURL(), task.getTargetWidth(), task.getTargetHeight(), task.getAllowRgb565(),
+                    task.getTransformation(), ImageExecutor.PRIORITY_NORMAL);
+            IN_FLIGHT.put(key, request);
+        }
+        request.getSubscribers().add(subscriber);
+        if(isNew) request.start();
+        else request.promote(ImageExecutor.PRIORITY_NORMAL);
+
+        return new Subscription(request, subscriber);
+    }
+
+    /**
+     * Download the url into the disk cache at low priority, so a later load
+     * only has to decode it. The listener may be null.
+     * */
+    static Subscription prefetch(Context context, String url, ImageRequest.Listener listener) {
+        String key = "prefetch#" + url;
+        ImageRequest request = IN_FLIGHT.get(key);
+        if(request == null) request = new ImageRequest(context, key, url, ImageExecutor.PRIORITY_LOW);
+        return prefetch(request, listener);
+    }
+
+    /**
+     * Like prefetch(Context, String, Listener), but also decodes the image
+     * into the memory cache, under the same key a BitmapTask for the url and
+     * size would use.
+     * */
+    static Subscription prefetch(Context context, String url, int width, int height, ImageRequest.Listener listener) {
+        String key = BitmapTask.createCacheKey(url, width, height, false, null);
+        ImageRequest request = IN_FLIGHT.get(key);
+        if(request == null) request = new ImageRequest(context, key, url, width, height, false, null, ImageExecutor.PRIORITY_LOW);
+        return prefetch(request, listener);
+    }
+
+    private static Subscription prefetch(ImageRequest request, ImageRequest.Listener listener) {
+        Object subscriber = listener != null ? listener : new Object();
+        boolean isNew = IN_FLIGHT.get(request.getKey()) != request;
+        if(isNew) IN_FLIGHT.put(request.getKey(), request);
+        request.getSubscribers().add(subscriber);
+        if(isNew) request.start();
+
+        return new Subscription(request, subscriber);
+    }
+
+    /**
+     * Returns the number of distinct requests currently in flight.
+     * */
+    public static int getInFlightCount() {
+        return IN_FLIGHT.size();
+    }
+
+    /**
+     * Called by the request once it has a result.
+     * */
+    static void complete(ImageRequest request, Bitmap result) {
+        if(IN_FLIGHT.get(request.getKey()) == request) IN_FLIGHT.remove(request.getKey());
+
+        List<Object> subscribers = new ArrayList<Object>(request.getSubscribers());
+        request.getSubscribers().clear();
+        for(Object subscriber : subscribers) {
+            if(subscriber instanceof BitmapTask) ((BitmapTask) subscriber).deliver(result);
+            else if(subscriber instanceof ImageRequest.Listener) ((ImageRequest.Listener) subscriber).onComplete(result);
+        }
+    }
+
+    private static void detach(ImageRequest request, Object subscriber) {
+        List<Object> subscribers = request.getSubscribers();
+        if(!subscribers.remove(subscriber) || !subscribers.isEmpty()) return;
+
+        // Last one out stops the fetch
+        if(IN_FLIGHT.get(request.getKey()) == request) IN_FLIGHT.remove(request.getKey());
+        request.cancel();
+    }
+
+    /**
+     * A single task's interest in a shared request.
+     * */
+    public static class Subscription {
+        private final ImageRequest mRequest;
+        private final Object mSubscriber;
+        private boolean mIsCancelled;
+
+        private Subscription(ImageRequest request, Object subscriber) {
+            mRequest = request;
+            mSubscriber = subscriber;
+        }
+
+        /**
+         * Detach from the request. The task won't be called back, and if no
+         * other task is waiting the fetch is stopped.
+         * */
+        public void cancel() {
+            if(mIsCancelled) return;
+            mIsCancelled = true;
+            detach(mRequest, mSubscriber);
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+    }
+}
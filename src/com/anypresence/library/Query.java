@@ -1,35 +1,56 @@
 package com.anypresence.library;
 
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * A class that abstracts away loading data into a list fragment.
+ *
+ * Queries are immutable values. Two queries with the same scope, params,
+ * limit and offset are equal no matter what order the params were put in, so
+ * a Query can be used as the key for cached or shared results.
  * */
 public final class Query implements Serializable {
 	private static final long serialVersionUID = 4168511200737474705L;
+    // Orders params by name for the key, with a null name first
+    private static final Comparator<Map.Entry<String, String>> BY_NAME = new Comparator<Map.Entry<String, String>>() {
+        @Override
+        public int compare(Map.Entry<String, String> lhs, Map.Entry<String, String> rhs) {
+            if(lhs.getKey() == null) return rhs.getKey() == null ? 0 : -1;
+            if(rhs.getKey() == null) return 1;
+            return lhs.getKey().compareTo(rhs.getKey());
+        }
+    };
+
 	private final String mScope;
     private final Map<String, String> mParams;
     private final Integer mLimit;
     private final Integer mOffset;
+    private transient String mKey;
+    private transient int mHash;
 
     public Query(String scope) {
-        mScope = scope;
-        mParams = null;
-        mLimit = null;
-        mOffset = null;
+        this(scope, null, null, null);
     }
 
     public Query(String scope, Map<String, String> params) {
-        mScope = scope;
-        mParams = params;
-        mLimit = null;
-        mOffset = null;
+        this(scope, params, null, null);
     }
 
+    /**
+     * The params are copied, so changing the map afterwards doesn't change
+     * the query.
+     * */
     public Query(String scope, Map<String, String> params, Integer limit, Integer offset) {
         mScope = scope;
-        mParams = params;
+        mParams = params == null ? null : new HashMap<String, String>(params);
         mLimit = limit;
         mOffset = offset;
     }
@@ -38,8 +59,12 @@ public final class Query implements Serializable {
         return mScope;
     }
 
+    /**
+     * Returns a copy of the params, or null. The SDK may change the map it's
+     * given, so each call gets its own.
+     * */
     public Map<String, String> getParams() {
-        return mParams;
+        return mParams == null ? null : new HashMap<String, String>(mParams);
     }
 
     public Integer getLimit() {
@@ -49,4 +74,70 @@ public final class Query implements Serializable {
     public Integer getOffset() {
         return mOffset;
     }
+
+    /**
+     * Returns a string that's the same for equal queries and different
+     * otherwise, e.g. "all?name=Tom&sort=asc#20,40".
+     * */
+    public String getKey() {
+        if(mKey == null) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(encode(mScope));
+            if(mParams != null) {
+                sb.append('?');
+                boolean first = true;
+                List<Map.Entry<String, String>> params = new ArrayList<Map.Entry<String, String>>(mParams.entrySet());
+                Collections.sort(params, BY_NAME);
+                for(Map.Entry<String, String> param : params) {
+                    if(!first) sb.append('&');
+                    first = false;
+                    sb.append(encode(param.getKey()));
+                    if(param.getValue() != null) sb.append('=').append(encode(param.getValue()));
+                }
+            }
+            sb.append('#');
+            if(mLimit != null) sb.append(mLimit);
+            sb.append(',');
+            if(mOffset != null) sb.append(mOffset);
+            mKey = sb.toString();
+        }
+        return mKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(o == this) return true;
+        if(!(o instanceof Query)) return false;
+        Query other = (Query) o;
+        return hashCode() == other.hashCode() && getKey().equals(other.getKey());
+    }
+
+    @Override
+    public int hashCode() {
+        if(mHash == 0) mHash = getKey().hashCode();
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+
+    /**
+     * Copy the params of a deserialized query, so it never shares a map with
+     * another object in the stream.
+     * */
+    private Object readResolve() {
+        return new Query(mScope, mParams, mLimit, mOffset);
+    }
+
+    private static String encode(String value) {
+        if(value == null) return "%00";
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -0,0 +1,174 @@
+package com.anypresence.library;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+/**
+ * Query results kept in memory for the whole process, so screens loading the
+ * same query don't each go back to the SDK and the server. Results are keyed
+ * by model class and Query, and fresh for a time to live that can be set per
+ * scope. Past that they're stale: still served, but refreshed by the next
+ * load. The cache holds up to a budget of items across every result.
+ *
+ * CachingDataSource reads and fills it. Saves and deletes through
+ * EditActivity and the edit fragments invalidate the saved class.
+ * */
+public class QueryResultCache {
+    private static final int DEFAULT_MAX_ITEMS = 2000;
+
+    private static final Map<String, Long> TTLS = new HashMap<String, Long>();
+    private static long DEFAULT_TIME_TO_LIVE = 30 * 1000;
+    private static volatile int GENERATION;
+    private static volatile LruCache<String, Entry> CACHE = createCache(DEFAULT_MAX_ITEMS);
+
+    /**
+     * Set how long results stay fresh, in milliseconds, for scopes without
+     * their own time to live. Defaults to 30 seconds.
+     * */
+    public static synchronized void setDefaultTimeToLive(long ttl) {
+        DEFAULT_TIME_TO_LIVE = ttl;
+    }
+
+    public static synchronized long getDefaultTimeToLive() {
+        return DEFAULT_TIME_TO_LIVE;
+    }
+
+    /**
+     * Set how long results of the scope stay fresh, in milliseconds. Pass 0
+     * to always refresh, but still show the last results while loading.
+     * */
+    public static synchronized void setTimeToLive(String scope, long ttl) {
+        TTLS.put(scope, ttl);
+    }
+
+    public static synchronized long getTimeToLive(String scope) {
+        Long ttl = TTLS.get(scope);
+        return ttl == null ? DEFAULT_TIME_TO_LIVE : ttl;
+    }
+
+    /**
+     * Set how many items, across every cached result, may be kept. Defaults
+     * to 2000.
+     * */
+    public static synchronized void setMaxItems(int maxItems) {
+        maxItems = Math.max(1, maxItems);
+        if(maxItems == CACHE.maxSize()) return;
+
+        // Copied in least recently used order, so the oldest go first if
+        // it's smaller
+        LruCache<String, Entry> resized = createCache(maxItems);
+        for(Map.Entry<String, Entry> entry : CACHE.snapshot().entrySet()) {
+            resized.put(entry.getKey(), entry.getValue());
+        }
+        CACHE = resized;
+    }
+
+    public static int getMaxItems() {
+        return CACHE.maxSize();
+    }
+
+    /**
+     * Returns the cached result, or null.
+     * */
+    static Entry get(Class<?> clazz, Query query) {
+        return CACHE.get(createKey(clazz, query));
+    }
+
+    /**
+     * Returns a number that changes whenever results are invalidated. Pass
+     * it back to put() so a load that started before an invalidation can't
+     * cache what it got.
+     * */
+    static int getGeneration() {
+        return GENERATION;
+    }
+
+    /**
+     * Cache a result, unless results were invalidated since the generation.
+     * The items are copied.
+     * */
+    static synchronized void put(Class<?> clazz, Query query, List<?> items, int generation) {
+        if(items == null || generation != GENERATION) return;
+        CACHE.put(createKey(clazz, query), new Entry(clazz, query, items));
+    }
+
+    /**
+     * Drop every cached result of the model class, and of its superclasses.
+     * Call after changing objects of the class outside the library.
+     * */
+    public static synchronized void invalidate(Class<?> clazz) {
+        GENERATION++;
+        for(Map.Entry<String, Entry> entry : CACHE.snapshot().entrySet()) {
+            if(entry.getValue().mClazz.isAssignableFrom(clazz)) CACHE.remove(entry.getKey());
+        }
+    }
+
+    /**
+     * Drop the cached results of one scope of the model class.
+     * */
+    public static synchronized void invalidate(Class<?> clazz, String scope) {
+        GENERATION++;
+        for(Map.Entry<String, Entry> entry : CACHE.snapshot().entrySet()) {
+            Entry value = entry.getValue();
+            if(!value.mClazz.isAssignableFrom(clazz)) continue;
+            if(scope == null ? value.mQuery.getScope() == null : scope.equals(value.mQuery.getScope())) CACHE.remove(entry.getKey());
+        }
+    }
+
+    /**
+     * Drop every cached result.
+     * */
+    public static synchronized void clear() {
+        GENERATION++;
+        CACHE.evictAll();
+    }
+
+    private static LruCache<String, Entry> createCache(int maxItems) {
+        return new LruCache<String, Entry>(maxItems) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                // Count the entry itself, so empty results aren't free
+                return entry.mItems.size() + 1;
+            }
+        };
+    }
+
+    private static String createKey(Class<?> clazz, Query query) {
+        return clazz.getName() + "/" + query.getKey();
+    }
+
+    /**
+     * A cached result.
+     * */
+    static class Entry {
+        private final Class<?> mClazz;
+        private final Query mQuery;
+        private final List<?> mItems;
+        private final long mLoadedAt;
+
+        private Entry(Class<?> clazz, Query query, List<?> items) {
+            mClazz = clazz;
+            mQuery = query;
+            mItems = new ArrayList<Object>(items);
+            mLoadedAt = SystemClock.elapsedRealtime();
+        }
+
+        boolean isFresh() {
+            return SystemClock.elapsedRealtime() - mLoadedAt < getTimeToLive(mQuery.getScope());
+        }
+
+        /**
+         * Returns a copy of the items, so callers can change their list
+         * without changing the cache.
+         * */
+        @SuppressWarnings("unchecked")
+        <T> List<T> getItems() {
+            return new ArrayList<T>((List<T>) mItems);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.anypresence.library;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.anypresence.rails_droid.IAPFutureCallback;
+import com.anypresence.rails_droid.RemoteObject;
+
+/**
+ * A DataSource that calls the static query methods of a generated SDK model
+ * class (fetchInCacheWithParameterPredicate, queryInBackground and so on).
+ * The methods are looked up once per class, and the instance is shared by
+ * every fragment loading that class.
+ * */
+public class SdkDataSource<T extends RemoteObject> implements DataSource<T> {
+    private static final Map<Class<?>, SdkDataSource<?>> DATA_SOURCES = new HashMap<Class<?>, SdkDataSource<?>>();
+
+    private final Class<T> mClazz;
+    private final Method mFetchInCache;
+    private final Method mFetchInCachePaged;
+    private final Method mQuery;
+    private final Method mQueryPaged;
+    private final Method mQueryWithParams;
+    private final Method mQueryWithParamsPaged;
+    private final Method mFetch;
+
+    /**
+     * Returns the data source for the model class.
+     * */
+    @SuppressWarnings("unchecked")
+    public static synchronized <T extends RemoteObject> SdkDataSource<T> forClass(Class<T> clazz) {
+        SdkDataSource<T> dataSource = (SdkDataSource<T>) DATA_SOURCES.get(clazz);
+        if(dataSource == null) {
+            dataSource = new SdkDataSource<T>(clazz);
+            DATA_SOURCES.put(clazz, dataSource);
+        }
+        return dataSource;
+    }
+
+    private SdkDataSource(Class<T> clazz) {
+        mClazz = clazz;
+        mFetchInCache = getMethod("fetchInCacheWithParameterPredicate", String.class, Map.class);
+        mFetchInCachePaged = getMethod("fetchInCacheWithLatestAPCachedRequestPredicate", String.class, Map.class, Integer.class, Integer.class);
+        mQuery = getMethod("queryInBackground", String.class, IAPFutureCallback.class);
+        mQueryPaged = getMethod("queryInBackground", String.class, Integer.class, Integer.class, IAPFutureCallback.class);
+        mQueryWithParams = getMethod("queryInBackground", String.class, Map.class, IAPFutureCallback.class);
+        mQueryWithParamsPaged = getMethod("queryInBackground", String.class, Map.class, Integer.class, Integer.class, IAPFutureCallback.class);
+        mFetch = getMethod("fetchInBackground", String.class, IAPFutureCallback.class);
+    }
+
+    /**
+     * Returns the model class.
+     * */
+    public Class<T> getClazz() {
+        return mClazz;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> loadCache(Query query) {
+        if(query == null || query.getScope() == null) return null;
+        if(query.getLimit() != null || query.getOffset() != null) {
+            // Query cache w/ limit and offset
+            return (List<T>) invoke(mFetchInCachePaged, query.getScope(), query.getParams(), query.getOffset(), query.getLimit());
+        }
+        else {
+            // Query cache w/o limit and offset
+            return (List<T>) invoke(mFetchInCache, query.getScope(), query.getParams());
+        }
+    }
+
+    @Override
+    public void loadServer(Query query, IAPFutureCallback<List<T>> callback) {
+        if(query == null || query.getScope() == null) {
+            callback.onFailure(new IllegalArgumentException("Query has no scope"));
+            return;
+        }
+        if(query.getParams() == null) {
+            if(query.getLimit() != null || query.getOffset() != null) {
+                invokeInBackground(callback, mQueryPaged, query.getScope(), query.getOffset(), query.getLimit(), callback);
+            }
+            else {
+                invokeInBackground(callback, mQuery, query.getScope(), callback);
+            }
+        }
+        else {
+            if(query.getLimit() != null || query.getOffset() != null) {
+                invokeInBackground(callback, mQueryWithParamsPaged, query.getScope(), query.getParams(), query.getOffset(), query.getLimit(), callback);
+            }
+            else {
+                invokeInBackground(callback, mQueryWithParams, query.getScope(), query.getParams(), callback);
+            }
+        }
+    }
+
+    @Override
+    public void fetch(String id, IAPFutureCallback<T> callback) {
+        invokeInBackground(callback, mFetch, id, callback);
+    }
+
+    private Method getMethod(String name, Class<?>... parameterTypes) {
+        try {
+            return mClazz.getMethod(name, parameterTypes);
+        }
+        catch(NoSuchMethodException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private Object invoke(Method method, Object... args) {
+        if(method == null) return null;
+        try {
+            return method.invoke(null, args);
+        }
+        catch(IllegalAccessException e) {
+            e.printStackTrace();
+        }
+        catch(InvocationTargetException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Call a method that loads in the background. If it can't be called, the
+     * callback is failed instead, so callers waiting on it always hear back.
+     * */
+    private void invokeInBackground(IAPFutureCallback<?> callback, Method method, Object... args) {
+        if(method == null) {
+            callback.onFailure(new NoSuchMethodException(mClazz.getName() + " is missing a query method"));
+            return;
+        }
+        try {
+            method.invoke(null, args);
+        }
+        catch(IllegalAccessException e) {
+            callback.onFailure(e);
+        }
+        catch(InvocationTargetException e) {
+            callback.onFailure(e.getCause() != null ? e.getCause() : e);
+        }
+    }
+}
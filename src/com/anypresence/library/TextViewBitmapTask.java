@@ -1,27 +1,121 @@
 package com.anypresence.library;
 
+import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.util.DisplayMetrics;
 import android.widget.TextView;
 
 /**
  * Loads an image from a URL into the left drawable on the passed TextView.
+ * Goes through the same memory cache, disk cache and shared requests as
+ * BitmapTask.
  * */
 public class TextViewBitmapTask extends BitmapTask {
     private final TextView mTextView;
+    private boolean mUseIntrinsicBounds;
 
     public TextViewBitmapTask(TextView textView, String url) {
-        super(null, url);
+        this(textView, url, 0, 0);
+    }
+
+    /**
+     * Load the image at roughly width x height, which is also the size the
+     * drawable is shown at. Pass 0 to use the bounds of the current left
+     * drawable, or the height of the TextView. With neither size and no left
+     * drawable, the image is shown at its own size.
+     * */
+    public TextViewBitmapTask(TextView textView, String url, int width, int height) {
+        super(null, url, width, height);
         this.mTextView = textView;
     }
 
+    @Override
+    protected Context getContext() {
+        return mTextView.getContext();
+    }
+
+    @Override
+    protected Object getTarget() {
+        return mTextView;
+    }
+
+    /**
+     * Decodes at the size the drawable will be shown at, rather than the
+     * screen size. Images shown at their own size are only bounded by the
+     * screen.
+     * */
+    @Override
+    protected void measureTarget() {
+        int width = getRequestedWidth();
+        int height = getRequestedHeight();
+
+        Drawable current = mTextView.getCompoundDrawables()[0];
+        mUseIntrinsicBounds = width <= 0 && height <= 0
+                && (current == null || (current instanceof LoadedDrawable && ((LoadedDrawable) current).mIsIntrinsic));
+        if(mUseIntrinsicBounds) {
+            DisplayMetrics metrics = getContext().getResources().getDisplayMetrics();
+            setTargetSize(metrics.widthPixels, metrics.heightPixels);
+            return;
+        }
+
+        if(current instanceof LoadedDrawable) {
+            // Reuse the slot of the last load, not the bounds the bitmap was
+            // fitted to
+            if(width <= 0) width = ((LoadedDrawable) current).mSlotWidth;
+            if(height <= 0) height = ((LoadedDrawable) current).mSlotHeight;
+        }
+        else if(current != null) {
+            Rect bounds = current.getBounds();
+            if(width <= 0) width = bounds.width() > 0 ? bounds.width() : current.getIntrinsicWidth();
+            if(height <= 0) height = bounds.height() > 0 ? bounds.height() : current.getIntrinsicHeight();
+        }
+
+        // Fit the text
+        int textHeight = mTextView.getHeight() - mTextView.getPaddingTop() - mTextView.getPaddingBottom();
+        if(textHeight <= 0) textHeight = mTextView.getLineHeight();
+        if(width <= 0) width = height > 0 ? height : textHeight;
+        if(height <= 0) height = textHeight;
+        setTargetSize(width, height);
+    }
+
     @Override
     protected void onPostExecute(Bitmap result) {
-        super.onPostExecute(result);
+        if(result == null) return;
+
+        Drawable[] drawables = mTextView.getCompoundDrawables();
+        if(drawables[0] instanceof BitmapDrawable && ((BitmapDrawable) drawables[0]).getBitmap() == result) return;
+
+        if(mUseIntrinsicBounds) {
+            Drawable d = new LoadedDrawable(mTextView.getContext().getResources(), result, getTargetWidth(), getTargetHeight(), true);
+            mTextView.setCompoundDrawablesWithIntrinsicBounds(d, drawables[1], drawables[2], drawables[3]);
+            return;
+        }
+
+        // Fit the bitmap inside the target size, keeping its aspect ratio
+        float scale = Math.min((float) getTargetWidth() / result.getWidth(), (float) getTargetHeight() / result.getHeight());
+        Drawable d = new LoadedDrawable(mTextView.getContext().getResources(), result, getTargetWidth(), getTargetHeight(), false);
+        d.setBounds(0, 0, Math.round(result.getWidth() * scale), Math.round(result.getHeight() * scale));
+        mTextView.setCompoundDrawables(d, drawables[1], drawables[2], drawables[3]);
+    }
+
+    /**
+     * A drawable this task set, remembering the size it was loaded for and
+     * whether it's shown at its own size.
+     * */
+    private static class LoadedDrawable extends BitmapDrawable {
+        private final int mSlotWidth;
+        private final int mSlotHeight;
+        private final boolean mIsIntrinsic;
 
-        Drawable d = new BitmapDrawable(mTextView.getContext().getResources(), result);
-        mTextView.setCompoundDrawablesWithIntrinsicBounds(d, mTextView.getCompoundDrawables()[1], mTextView.getCompoundDrawables()[2],
-                mTextView.getCompoundDrawables()[3]);
+        private LoadedDrawable(Resources res, Bitmap bitmap, int slotWidth, int slotHeight, boolean isIntrinsic) {
+            super(res, bitmap);
+            mSlotWidth = slotWidth;
+            mSlotHeight = slotHeight;
+            mIsIntrinsic = isIntrinsic;
+        }
     }
 }
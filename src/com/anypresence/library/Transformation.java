@@ -0,0 +1,27 @@
+package com.anypresence.library;
+
+import android.graphics.Bitmap;
+
+/**
+ * Changes a bitmap after it's decoded and before it's cached, e.g. cropping
+ * it into a circle. Transformations run on the decode thread, and the result
+ * is cached separately for each transformation, so a view bound again only
+ * costs a memory lookup.
+ *
+ * See Transformations for common ones.
+ * */
+public interface Transformation {
+    /**
+     * Returns a string that identifies the transformation and its
+     * parameters. Bitmaps are cached under it, so two transformations that
+     * draw differently must never share a key.
+     * */
+    public String getKey();
+
+    /**
+     * Returns the transformed bitmap. Called on a background thread. Return
+     * the source if nothing needs to change. Otherwise the source is handed
+     * back to the bitmap pool, so don't keep a reference to it.
+     * */
+    public Bitmap transform(Bitmap source);
+}
@@ -0,0 +1,134 @@
+package com.anypresence.library;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Shader;
+
+/**
+ * Common transformations for loadImage() and BitmapTask.
+ * */
+public class Transformations {
+    /**
+     * Crops the center of the image into a circle. Corners are transparent.
+     * */
+    public static Transformation circleCrop() {
+        return new Transformation() {
+            @Override
+            public String getKey() {
+                return "circleCrop";
+            }
+
+            @Override
+            public Bitmap transform(Bitmap source) {
+                int size = Math.min(source.getWidth(), source.getHeight());
+                Bitmap result = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+
+                BitmapShader shader = new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+                Matrix matrix = new Matrix();
+                matrix.setTranslate(-(source.getWidth() - size) / 2f, -(source.getHeight() - size) / 2f);
+                shader.setLocalMatrix(matrix);
+
+                Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+                paint.setShader(shader);
+                new Canvas(result).drawCircle(size / 2f, size / 2f, size / 2f, paint);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Scales the image to fill width x height, cropping whatever doesn't fit,
+     * like ImageView.ScaleType.CENTER_CROP.
+     * */
+    public static Transformation centerCrop(final int width, final int height) {
+        return new Transformation() {
+            @Override
+            public String getKey() {
+                return "centerCrop(" + width + "," + height + ")";
+            }
+
+            @Override
+            public Bitmap transform(Bitmap source) {
+                if(source.getWidth() == width && source.getHeight() == height) return source;
+
+                float scale = Math.max((float) width / source.getWidth(), (float) height / source.getHeight());
+                Matrix matrix = new Matrix();
+                matrix.setScale(scale, scale);
+                matrix.postTranslate((width - source.getWidth() * scale) / 2f, (height - source.getHeight() * scale) / 2f);
+
+                Bitmap.Config config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+                Bitmap result = Bitmap.createBitmap(width, height, config);
+                new Canvas(result).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Blurs the image. Three box blur passes of the radius, which is close to
+     * a gaussian blur.
+     * */
+    public static Transformation blur(final int radius) {
+        return new Transformation() {
+            @Override
+            public String getKey() {
+                return "blur(" + radius + ")";
+            }
+
+            @Override
+            public Bitmap transform(Bitmap source) {
+                if(radius < 1) return source;
+
+                int width = source.getWidth();
+                int height = source.getHeight();
+                int[] pixels = new int[width * height];
+                int[] buffer = new int[width * height];
+                source.getPixels(pixels, 0, width, 0, 0, width, height);
+                for(int i = 0; i < 3; i++) {
+                    boxBlur(pixels, buffer, width, height, radius);
+                    boxBlur(buffer, pixels, height, width, radius);
+                }
+
+                Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                result.setPixels(pixels, 0, width, 0, 0, width, height);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Blurs each row of in horizontally and writes it to out transposed, so
+     * calling it twice blurs in both directions.
+     * */
+    private static void boxBlur(int[] in, int[] out, int width, int height, int radius) {
+        int window = radius * 2 + 1;
+        for(int y = 0; y < height; y++) {
+            int row = y * width;
+            int a = 0, r = 0, g = 0, b = 0;
+            for(int i = -radius; i <= radius; i++) {
+                int pixel = in[row + clamp(i, width)];
+                a += pixel >>> 24;
+                r += (pixel >> 16) & 0xff;
+                g += (pixel >> 8) & 0xff;
+                b += pixel & 0xff;
+            }
+            for(int x = 0; x < width; x++) {
+                out[x * height + y] = ((a / window) << 24) | ((r / window) << 16) | ((g / window) << 8) | (b / window);
+
+                int added = in[row + clamp(x + radius + 1, width)];
+                int removed = in[row + clamp(x - radius, width)];
+                a += (added >>> 24) - (removed >>> 24);
+                r += ((added >> 16) & 0xff) - ((removed >> 16) & 0xff);
+                g += ((added >> 8) & 0xff) - ((removed >> 8) & 0xff);
+                b += (added & 0xff) - (removed & 0xff);
+            }
+        }
+    }
+
+    private static int clamp(int index, int length) {
+        return index < 0 ? 0 : index >= length ? length - 1 : index;
+    }
+}
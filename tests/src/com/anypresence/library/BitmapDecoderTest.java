@@ -0,0 +1,147 @@
+package com.anypresence.library;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how images are sized and keyed, and compares caching the downloaded
+ * bytes as-is with re-encoding the decoded bitmap as a PNG.
+ * */
+public class BitmapDecoderTest extends TestCase {
+    private static final int BENCHMARK_RUNS = 5;
+
+    public void testNoRequestedSizeKeepsFullSize() {
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(4000, 3000, 0, 0));
+    }
+
+    public void testSampleSizeKeepsAtLeastRequestedSize() {
+        assertEquals(4, BitmapDecoder.calculateInSampleSize(4000, 3000, 1000, 750));
+        assertEquals(2, BitmapDecoder.calculateInSampleSize(4000, 3000, 1001, 750));
+        assertEquals(2, BitmapDecoder.calculateInSampleSize(4000, 3000, 1000, 751));
+    }
+
+    public void testSampleSizeWithOneDimension() {
+        assertEquals(4, BitmapDecoder.calculateInSampleSize(4000, 3000, 0, 700));
+        assertEquals(8, BitmapDecoder.calculateInSampleSize(4000, 3000, 500, 0));
+    }
+
+    public void testSmallImagesAreNotSampled() {
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(100, 100, 200, 200));
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(100, 100, 100, 100));
+    }
+
+    public void testCacheKeySeparatesSizes() {
+        String url = "http://example.com/a.jpg";
+        assertEquals(url + "#100x200", BitmapTask.createCacheKey(url, 100, 200, false, null));
+        assertFalse(BitmapTask.createCacheKey(url, 100, 200, false, null).equals(BitmapTask.createCacheKey(url, 200, 100, false, null)));
+    }
+
+    public void testCacheKeySeparatesConfigsAndTransformations() {
+        String url = "http://example.com/a.jpg";
+        Transformation circle = new Transformation() {
+            @Override
+            public String getKey() {
+                return "circle";
+            }
+
+            @Override
+            public Bitmap transform(Bitmap source) {
+                return source;
+            }
+        };
+        assertEquals(url + "#100x100#565", BitmapTask.createCacheKey(url, 100, 100, true, null));
+        assertEquals(url + "#100x100#circle", BitmapTask.createCacheKey(url, 100, 100, false, circle));
+        assertEquals(url + "#100x100#565#circle", BitmapTask.createCacheKey(url, 100, 100, true, circle));
+    }
+
+    /**
+     * The old path decoded the download and wrote it back out with
+     * compress(PNG, 90). The new one streams the bytes to disk and decodes
+     * the file. Both end with the file on disk and a decoded bitmap.
+     * */
+    public void testRawBytesBenchmark() throws IOException {
+        byte[] jpeg = createJpeg(800, 600);
+        File directory = File.createTempFile("BitmapDecoderTest", "");
+        directory.delete();
+        BitmapDiskCache diskCache = BitmapDiskCache.open(directory, 10 * 1024 * 1024);
+        File png = new File(directory, "reencoded.png");
+
+        try {
+            long reencodeTime = 0;
+            long rawTime = 0;
+            for(int i = 0; i < BENCHMARK_RUNS; i++) {
+                long start = System.nanoTime();
+                Bitmap decoded = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+                OutputStream os = new FileOutputStream(png);
+                decoded.compress(Bitmap.CompressFormat.PNG, 90, os);
+                os.close();
+                reencodeTime += System.nanoTime() - start;
+                decoded.recycle();
+
+                start = System.nanoTime();
+                BitmapDiskCache.Editor editor = diskCache.edit("raw");
+                os = editor.newOutputStream();
+                copy(new ByteArrayInputStream(jpeg), os);
+                os.close();
+                editor.commit();
+                decoded = BitmapDecoder.decodeFile(diskCache.get("raw").toString(), 0, 0, false);
+                rawTime += System.nanoTime() - start;
+                decoded.recycle();
+            }
+
+            long rawBytes = diskCache.get("raw").length();
+            Log.i(AnyPresenceActivity.TAG, "PNG re-encode: " + png.length() + " bytes, " + reencodeTime / BENCHMARK_RUNS / 1000 + "us; raw bytes: "
+                    + rawBytes + " bytes, " + rawTime / BENCHMARK_RUNS / 1000 + "us");
+            assertEquals(jpeg.length, rawBytes);
+            assertTrue(rawBytes < png.length());
+        }
+        finally {
+            png.delete();
+            diskCache.clear();
+            directory.delete();
+        }
+    }
+
+    /**
+     * A photo-like JPEG: smooth gradients with noise, which PNG compresses
+     * badly.
+     * */
+    private static byte[] createJpeg(int width, int height) {
+        Random random = new Random(42);
+        int[] pixels = new int[width * height];
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                int r = (x * 255 / width + noise) & 0xff;
+                int g = (y * 255 / height + noise) & 0xff;
+                int b = ((x + y) * 255 / (width + height) + noise) & 0xff;
+                pixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 85, bytes);
+        bitmap.recycle();
+        return bytes.toByteArray();
+    }
+
+    private static void copy(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+    }
+}
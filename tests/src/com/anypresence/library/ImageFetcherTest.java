@@ -0,0 +1,238 @@
+package com.anypresence.library;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the disk entry metadata and conditional requests of ImageFetcher
+ * against a local HTTP server.
+ * */
+public class ImageFetcherTest extends TestCase {
+    private static final String BODY = "not really a png";
+
+    private File mDirectory;
+    private BitmapDiskCache mDiskCache;
+    private Server mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("ImageFetcherTest", "");
+        mDirectory.delete();
+        mDiskCache = BitmapDiskCache.open(mDirectory, 1024 * 1024);
+        mServer = new Server();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        mDiskCache.clear();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testMaxAgeIsFresh() throws Exception {
+        assertTrue(isFresh(createMetadata("max-age=600")));
+    }
+
+    public void testMustRevalidateKeepsMaxAge() throws Exception {
+        assertTrue(isFresh(createMetadata("max-age=600, must-revalidate")));
+        assertTrue(isFresh(createMetadata("must-revalidate")));
+    }
+
+    public void testNoCacheIsStale() throws Exception {
+        assertFalse(isFresh(createMetadata("no-cache")));
+        assertFalse(isFresh(createMetadata("max-age=0")));
+    }
+
+    public void testDefaultFreshness() throws Exception {
+        assertTrue(isFresh(createMetadata(null)));
+    }
+
+    public void testFetchCachesBody() throws Exception {
+        mServer.enqueue("200 OK", BODY, "Cache-Control: max-age=600", "ETag: \"v1\"");
+        File file = ImageFetcher.fetchToDisk(mDiskCache, mServer.getURL());
+
+        assertNotNull(file);
+        assertEquals(BODY, read(file));
+        assertTrue(ImageFetcher.isFresh(mDiskCache, mServer.getURL()));
+    }
+
+    public void testNotModifiedKeepsBody() throws Exception {
+        mServer.enqueue("200 OK", BODY, "Cache-Control: no-cache", "ETag: \"v1\"", "Last-Modified: Sat, 17 Oct 2026 00:00:00 GMT");
+        mServer.enqueue("304 Not Modified", null, "Cache-Control: max-age=600");
+        ImageFetcher.fetchToDisk(mDiskCache, mServer.getURL());
+        assertFalse(ImageFetcher.isFresh(mDiskCache, mServer.getURL()));
+
+        File file = ImageFetcher.fetchToDisk(mDiskCache, mServer.getURL());
+        Map<String, String> revalidation = mServer.getRequests().get(1);
+        assertEquals("\"v1\"", revalidation.get("if-none-match"));
+        assertEquals("Sat, 17 Oct 2026 00:00:00 GMT", revalidation.get("if-modified-since"));
+        assertEquals(BODY, read(file));
+        assertTrue(ImageFetcher.isFresh(mDiskCache, mServer.getURL()));
+    }
+
+    public void testNotModifiedKeepsValidators() throws Exception {
+        mServer.enqueue("200 OK", BODY, "Cache-Control: no-cache", "ETag: \"v1\"");
+        mServer.enqueue("304 Not Modified", null, "Cache-Control: no-cache");
+        mServer.enqueue("304 Not Modified", null, "Cache-Control: no-cache");
+        ImageFetcher.fetchToDisk(mDiskCache, mServer.getURL());
+        ImageFetcher.fetchToDisk(mDiskCache, mServer.getURL());
+        ImageFetcher.fetchToDisk(mDiskCache, mServer.getURL());
+
+        assertEquals("\"v1\"", mServer.getRequests().get(2).get("if-none-match"));
+    }
+
+    public void testNoStoreIsNotWritten() throws Exception {
+        mServer.enqueue("200 OK", BODY, "Cache-Control: no-store");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        File file = ImageFetcher.fetchToDisk(mDiskCache, mServer.getURL(), new CancelHandle(), body);
+
+        assertNull(file);
+        assertEquals(BODY, body.toString("UTF-8"));
+        assertNull(mDiskCache.get(mServer.getURL()));
+    }
+
+    public void testNoStoreDropsOlderCopy() throws Exception {
+        mServer.enqueue("200 OK", BODY, "Cache-Control: no-cache", "ETag: \"v1\"");
+        mServer.enqueue("200 OK", BODY, "Cache-Control: no-store");
+        ImageFetcher.fetchToDisk(mDiskCache, mServer.getURL());
+        assertNotNull(mDiskCache.get(mServer.getURL()));
+
+        assertNull(ImageFetcher.fetchToDisk(mDiskCache, mServer.getURL()));
+        assertNull(mDiskCache.get(mServer.getURL()));
+    }
+
+    private String createMetadata(final String cacheControl) throws IOException {
+        URLConnection conn = new URLConnection(new URL("http://localhost/")) {
+            @Override
+            public void connect() {}
+
+            @Override
+            public String getHeaderField(String name) {
+                return "Cache-Control".equalsIgnoreCase(name) ? cacheControl : null;
+            }
+        };
+        return ImageFetcher.createMetadata(conn, null, null);
+    }
+
+    private boolean isFresh(String metadata) throws IOException {
+        BitmapDiskCache.Editor editor = mDiskCache.edit("key");
+        OutputStream os = editor.newOutputStream();
+        os.write(1);
+        os.close();
+        editor.setMetadata(metadata);
+        editor.commit();
+        return ImageFetcher.isFresh(mDiskCache, "key");
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while((read = is.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toString("UTF-8");
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Answers each connection with the next queued response and records the
+     * request headers, lower cased.
+     * */
+    private static class Server implements Runnable {
+        private final ServerSocket mSocket;
+        private final LinkedList<String> mResponses = new LinkedList<String>();
+        private final List<Map<String, String>> mRequests = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+
+        private Server() throws IOException {
+            mSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "ImageFetcherTest server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getURL() {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/image.png";
+        }
+
+        List<Map<String, String>> getRequests() {
+            return mRequests;
+        }
+
+        synchronized void enqueue(String status, String body, String... headers) {
+            StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+            for(String header : headers) {
+                sb.append(header).append("\r\n");
+            }
+            sb.append("Content-Length: ").append(body == null ? 0 : body.length()).append("\r\n");
+            sb.append("Connection: close\r\n\r\n");
+            if(body != null) sb.append(body);
+            mResponses.add(sb.toString());
+        }
+
+        private synchronized String nextResponse() {
+            return mResponses.isEmpty() ? "HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\nConnection: close\r\n\r\n" : mResponses.removeFirst();
+        }
+
+        @Override
+        public void run() {
+            while(!mSocket.isClosed()) {
+                try {
+                    Socket socket = mSocket.accept();
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                        Map<String, String> headers = new HashMap<String, String>();
+                        reader.readLine();
+                        String line;
+                        while((line = reader.readLine()) != null && line.length() > 0) {
+                            int colon = line.indexOf(':');
+                            if(colon > 0) headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                        }
+                        mRequests.add(headers);
+
+                        OutputStream os = socket.getOutputStream();
+                        os.write(nextResponse().getBytes("US-ASCII"));
+                        os.flush();
+                    }
+                    finally {
+                        socket.close();
+                    }
+                }
+                catch(IOException e) {
+                    // Closed by tearDown()
+                }
+            }
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}